@@ -1,8 +1,7 @@
 package org.sonar.plugins.stash;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.CheckForNull;
 
@@ -12,29 +11,45 @@ import org.sonar.api.BatchComponent;
 import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.batch.fs.InputFile;
 
+/**
+ * Index of the files of all the modules by component key, filled once per
+ * module by {@link InputFileCacheSensor}.
+ *
+ * Only what is needed later is kept, not the InputFile objects, and the
+ * modules may be indexed concurrently.
+ */
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
 public class InputFileCache implements BatchComponent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InputFileCache.class);
 
-    private final Map<String, InputFile> inputFileByKey = new HashMap<>();
+    private final Map<String, CachedFile> fileByKey = new ConcurrentHashMap<>();
 
     public InputFileCache() {
         LOGGER.debug("New InputFileCache created");
     }
 
-    // For debug purpose
-    public Map<String, InputFile> getInputFileByKeyMap() {
-        return Collections.unmodifiableMap(inputFileByKey);
+    public int size() {
+        return fileByKey.size();
     }
 
-    public void putInputFile(String componentKey, InputFile inputFile) {
-        inputFileByKey.put(componentKey, inputFile);
+    /**
+     * @param path
+     *            path of the file in the Stash repository
+     */
+    public void putInputFile(String componentKey, InputFile inputFile, String path) {
+        fileByKey.put(componentKey, new CachedFile(path, inputFile.status(), inputFile.language()));
     }
 
     @CheckForNull
-    public InputFile getInputFile(String componentKey) {
-        return inputFileByKey.get(componentKey);
+    public CachedFile getFile(String componentKey) {
+        return componentKey == null ? null : fileByKey.get(componentKey);
+    }
+
+    @CheckForNull
+    public String getPath(String componentKey) {
+        CachedFile file = getFile(componentKey);
+        return file == null ? null : file.getPath();
     }
 
     @Override
@@ -42,4 +57,29 @@ public class InputFileCache implements BatchComponent {
         return "Stash Plugin InputFile Cache";
     }
 
+    public static final class CachedFile {
+        private final String path;
+        private final InputFile.Status status;
+        private final String language;
+
+        CachedFile(String path, InputFile.Status status, String language) {
+            this.path = path;
+            this.status = status;
+            this.language = language;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @CheckForNull
+        public InputFile.Status getStatus() {
+            return status;
+        }
+
+        @CheckForNull
+        public String getLanguage() {
+            return language;
+        }
+    }
 }
@@ -14,18 +14,21 @@ public class InputFileCacheSensor implements Sensor, BatchComponent {
     private final StashPluginConfiguration stashPluginConfiguration;
     private final InputFileCache inputFileCache;
     private final FileSystem fileSystem;
+    private final StashRequestFacade stashRequestFacade;
 
     public InputFileCacheSensor(StashPluginConfiguration stashPluginConfiguration, InputFileCache inputFileCache,
-            FileSystem fileSystem) {
+            FileSystem fileSystem, StashRequestFacade stashRequestFacade) {
         this.stashPluginConfiguration = stashPluginConfiguration;
         this.inputFileCache = inputFileCache;
         this.fileSystem = fileSystem;
+        this.stashRequestFacade = stashRequestFacade;
     }
 
     @Override
     public void analyse(Project module, SensorContext context) {
         for (InputFile inputFile : fileSystem.inputFiles(fileSystem.predicates().all())) {
-            inputFileCache.putInputFile(context.getResource(inputFile).getEffectiveKey(), inputFile);
+            inputFileCache.putInputFile(context.getResource(inputFile).getEffectiveKey(), inputFile,
+                    stashRequestFacade.getPath(inputFile));
         }
     }
 
@@ -1,6 +1,10 @@
 package org.sonar.plugins.stash;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,26 +14,32 @@ import org.sonar.api.batch.SensorContext;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.resources.Project;
+import org.sonar.plugins.stash.client.HttpClientSettings;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashDiffReport;
+import org.sonar.plugins.stash.issue.StashPullRequest;
 import org.sonar.plugins.stash.issue.StashUser;
 
 public class StashIssueReportingPostJob implements PostJob, BatchComponent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StashIssueReportingPostJob.class);
     private static final String STACK_TRACE = "Exception stack trace";
+    private static final int POST_JOB_THREADS = 4;
 
     private final ProjectIssues projectIssues;
     private final StashPluginConfiguration config;
     private final StashRequestFacade stashRequestFacade;
+    private final StashPrefetcher stashPrefetcher;
 
     public StashIssueReportingPostJob(StashPluginConfiguration stashPluginConfiguration, ProjectIssues projectIssues,
-            StashRequestFacade stashRequestFacade) {
+            StashRequestFacade stashRequestFacade, StashPrefetcher stashPrefetcher) {
         this.projectIssues = projectIssues;
         this.config = stashPluginConfiguration;
         this.stashRequestFacade = stashRequestFacade;
+        this.stashPrefetcher = stashPrefetcher;
     }
 
     @Override
@@ -43,9 +53,10 @@ public class StashIssueReportingPostJob implements PostJob, BatchComponent {
                 int stashTimeout = config.getStashTimeout();
 
                 StashCredentials stashCredentials = stashRequestFacade.getCredentials();
+                HttpClientSettings httpClientSettings = stashRequestFacade.getHttpClientSettings();
 
                 try (StashClient stashClient = new StashClient(stashURL, stashCredentials, stashTimeout,
-                        config.getSonarQubeVersion())) {
+                        config.getSonarQubeVersion(), httpClientSettings)) {
 
                     // Down the rabbit hole...
                     updateStashWithSonarInfo(stashClient, stashCredentials);
@@ -59,40 +70,88 @@ public class StashIssueReportingPostJob implements PostJob, BatchComponent {
 
     /*
      * Second part of the code necessary for the executeOn() -- squid:S134
+     *
+     * The steps only wait for the steps they depend on: reviewer, diff and
+     * pull-request are fetched at the same time and the overview is posted
+     * alongside the comments. The approval is updated last, once the reviewer
+     * is added and the comments and overview are posted, as before.
      */
     private void updateStashWithSonarInfo(StashClient stashClient, StashCredentials stashCredentials) {
+        ExecutorService executor = StashPluginUtils.createExecutor("post-job", POST_JOB_THREADS);
 
         try {
             int issueThreshold = stashRequestFacade.getIssueThreshold();
             PullRequestRef pr = stashRequestFacade.getPullRequest();
+            boolean canApprovePullrequest = config.canApprovePullRequest();
+
+            CompletableFuture<StashUser> stashUserFuture = CompletableFuture
+                    .supplyAsync(() -> getSonarQubeReviewer(stashCredentials.getLogin(), stashClient), executor);
 
-            StashUser stashUser = stashRequestFacade.getSonarQubeReviewer(stashCredentials.getLogin(), stashClient);
+            // Get all changes exposed from Stash differential view of the
+            // pull-request
+            CompletableFuture<StashDiffReport> diffReportFuture = CompletableFuture
+                    .supplyAsync(() -> getPullRequestDiffReport(pr, stashClient), executor);
 
+            CompletableFuture<StashPullRequest> pullRequestFuture = CompletableFuture.completedFuture(null);
+            if (canApprovePullrequest) {
+                pullRequestFuture = CompletableFuture.supplyAsync(() -> getStashPullRequest(pr, stashClient), executor);
+            }
+
+            StashUser stashUser = StashPluginUtils.join(stashUserFuture);
             if (stashUser == null) {
                 throw new StashMissingElementException("No SonarQube reviewer identified to publish to Stash the SQ analysis");
             }
 
-            // Get all changes exposed from Stash differential view of the
-            // pull-request
-            StashDiffReport diffReport = stashRequestFacade.getPullRequestDiffReport(pr, stashClient);
+            StashDiffReport diffReport = StashPluginUtils.join(diffReportFuture);
             if (diffReport == null) {
                 throw new StashMissingElementException("No Stash differential report available to process the SQ analysis");
             }
 
-            // SonarQube objects
-            List<Issue> issueReport = stashRequestFacade.extractIssueReport(projectIssues, diffReport);
+            // SonarQube objects, with the most important issues selected
+            // while they are read
+            int topIssueCount = config.getTopIssueCount();
+            TopIssues topIssues = topIssueCount > 0 ? new TopIssues(topIssueCount, stashRequestFacade) : null;
+            CompletableFuture<List<Issue>> issueReportFuture = CompletableFuture.supplyAsync(
+                    () -> stashRequestFacade.extractIssueReport(projectIssues, diffReport, topIssues), executor);
 
-            // if requested, reset all comments linked to the pull-request
-            if (config.resetComments()) {
-                stashRequestFacade.resetComments(pr, diffReport, stashUser, stashClient);
+            // if requested, reset all comments linked to the pull-request,
+            // unless outdated comments are deleted by the reconciliation
+            CompletableFuture<List<StashComment>> resetFuture = CompletableFuture
+                    .completedFuture(Collections.<StashComment>emptyList());
+            if (config.resetComments() && !config.reconcileComments()) {
+                resetFuture = CompletableFuture.supplyAsync(
+                        () -> stashRequestFacade.resetComments(pr, diffReport, stashUser, stashClient), executor);
             }
 
-            boolean canApprovePullrequest = config.canApprovePullRequest();
+            CompletableFuture<Void> reviewerFuture = CompletableFuture.completedFuture(null);
+            if (canApprovePullrequest) {
+                reviewerFuture = pullRequestFuture.thenAcceptAsync(pullRequest -> stashRequestFacade
+                        .addPullRequestReviewer(pr, stashUser, pullRequest, stashClient), executor);
+            }
+
+            CompletableFuture<List<Issue>> issueReportAfterReset = issueReportFuture.thenCombine(resetFuture,
+                    (issueReport, ignored) -> issueReport);
+
+            CompletableFuture<Void> commentsFuture = issueReportFuture.thenAcceptBothAsync(resetFuture,
+                    (issueReport, deletedComments) -> postIssueReport(pr, issueReport, topIssues, issueThreshold,
+                            diffReport, deletedComments, stashUser, stashClient),
+                    executor);
+
+            CompletableFuture<Void> overviewFuture = CompletableFuture.completedFuture(null);
+            if (config.includeAnalysisOverview()) {
+                overviewFuture = issueReportAfterReset.thenAcceptAsync(issueReport -> stashRequestFacade
+                        .postAnalysisOverview(pr, issueThreshold, issueReport, stashClient), executor);
+            }
+
+            CompletableFuture<Void> approvalFuture = CompletableFuture.completedFuture(null);
             if (canApprovePullrequest) {
-                stashRequestFacade.addPullRequestReviewer(pr, stashCredentials.getLogin(), stashClient);
+                approvalFuture = issueReportFuture
+                        .thenCombine(CompletableFuture.allOf(reviewerFuture, commentsFuture, overviewFuture),
+                                (issueReport, ignored) -> issueReport)
+                        .thenAcceptAsync(issueReport -> updateApproval(pr, issueReport, stashClient), executor);
             }
 
-            postInfoAndPRsActions(pr, issueReport, issueThreshold, diffReport, stashClient);
+            StashPluginUtils.join(CompletableFuture.allOf(commentsFuture, overviewFuture, approvalFuture));
 
         } catch (StashConfigurationException e) {
             LOGGER.error("Unable to push SonarQube report to Stash: {}", e.getMessage());
@@ -101,42 +160,93 @@ public class StashIssueReportingPostJob implements PostJob, BatchComponent {
         } catch (StashMissingElementException e) {
             LOGGER.error("Process stopped: {}", e.getMessage());
             LOGGER.debug(STACK_TRACE, e);
+
+        } finally {
+            executor.shutdownNow();
         }
     }
 
     /*
-     * Second part of the code necessary for the updateStashWithSonarInfo()
-     * method and third part of the executeOn() method (call of a call) --
-     * squid:MethodCyclomaticComplexity
+     * Prefer the data fetched during the analysis.
      */
-    private void postInfoAndPRsActions(PullRequestRef pr, List<Issue> issueReport, int issueThreshold, StashDiffReport diffReport,
-            StashClient stashClient) {
+    private StashUser getSonarQubeReviewer(String login, StashClient stashClient) {
+        StashUser stashUser = stashPrefetcher.getSonarQubeReviewer();
+        if (stashUser == null) {
+            stashUser = stashRequestFacade.getSonarQubeReviewer(login, stashClient);
+        }
+        return stashUser;
+    }
+
+    private StashDiffReport getPullRequestDiffReport(PullRequestRef pr, StashClient stashClient) {
+        // only the files with issues matter, unless all comments are reset or
+        // reconciled
+        Set<String> paths = null;
+        if (stashRequestFacade.isDiffOfIssuePathsOnly()) {
+            paths = stashRequestFacade.getIssuePaths(projectIssues);
+        }
 
-        // Some local definitions
-        boolean canApprovePullrequest = config.canApprovePullRequest();
+        StashDiffReport diffReport = stashPrefetcher.getPullRequestDiffReport(paths);
+        if (diffReport == null) {
+            if (paths != null) {
+                diffReport = stashRequestFacade.getPullRequestDiffReport(pr, paths, stashClient);
+            } else {
+                diffReport = stashRequestFacade.getPullRequestDiffReport(pr, stashClient);
+            }
+        }
+        return diffReport;
+    }
 
+    private StashPullRequest getStashPullRequest(PullRequestRef pr, StashClient stashClient) {
+        StashPullRequest pullRequest = stashPrefetcher.getPullRequest();
+        if (pullRequest == null) {
+            pullRequest = stashRequestFacade.getStashPullRequest(pr, stashClient);
+        }
+        return pullRequest;
+    }
+
+    /*
+     * The deleted comments were reset, they are still in the diff report.
+     */
+    private void postIssueReport(PullRequestRef pr, List<Issue> issueReport, TopIssues topIssues, int issueThreshold,
+            StashDiffReport diffReport, List<StashComment> deletedComments, StashUser stashUser, StashClient stashClient) {
         int issueTotal = issueReport.size();
 
-        // if threshold exceeded, do not push issue list to Stash
-        if (issueTotal >= issueThreshold) {
+        // only the most important issues, whatever the threshold
+        if (topIssues != null) {
+            List<Issue> commentedIssues = topIssues.getIssues();
+            LOGGER.info("Commenting the {} most important issues of {}", commentedIssues.size(), issueTotal);
+
+            if (config.reconcileComments()) {
+                stashRequestFacade.reconcileComments(pr, commentedIssues, diffReport, stashUser, stashClient);
+            } else {
+                stashRequestFacade.postSonarQubeReport(pr, commentedIssues, diffReport, deletedComments, stashClient);
+            }
+        } else if (issueTotal >= issueThreshold) {
+            // if threshold exceeded, do not push issue list to Stash
             LOGGER.warn("Too many issues detected ({}/{}): Issues cannot be displayed in Diff view", issueTotal, issueThreshold);
+
+            if (config.reconcileComments()) {
+                stashRequestFacade.reconcileComments(pr, Collections.<Issue>emptyList(), diffReport, stashUser, stashClient);
+            }
+        } else if (config.reconcileComments()) {
+            stashRequestFacade.reconcileComments(pr, stashRequestFacade.getIssuesToComment(issueReport, diffReport),
+                    diffReport, stashUser, stashClient);
         } else {
             // publish SonarQube issue and code coverage
-            stashRequestFacade.postSonarQubeReport(pr, issueReport, diffReport, stashClient);
-        }
-
-        if (config.includeAnalysisOverview()) {
-            stashRequestFacade.postAnalysisOverview(pr, issueThreshold, issueReport, stashClient);
+            stashRequestFacade.postSonarQubeReport(pr, stashRequestFacade.getIssuesToComment(issueReport, diffReport),
+                    diffReport, deletedComments, stashClient);
         }
+    }
 
-        // if no new issues and coverage is improved,
-        // plugin approves the pull-request
-        if (canApprovePullrequest) {
-            if (issueTotal == 0) {
-                stashRequestFacade.approvePullRequest(pr, stashClient);
-            } else {
-                stashRequestFacade.resetPullRequestApproval(pr, stashClient);
-            }
+    /*
+     * if no new issues and coverage is improved, plugin approves the
+     * pull-request
+     */
+    private void updateApproval(PullRequestRef pr, List<Issue> issueReport, StashClient stashClient) {
+        if (issueReport.size() == 0) {
+            stashRequestFacade.approvePullRequest(pr, stashClient);
+        } else {
+            stashRequestFacade.resetPullRequestApproval(pr, stashClient);
         }
     }
 
@@ -10,9 +10,11 @@ import org.sonar.api.SonarPlugin;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.resources.Qualifiers;
 import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.client.HttpClientSettings;
 import org.sonar.plugins.stash.coverage.CoverageProjectStore;
 import org.sonar.plugins.stash.coverage.CoverageRule;
 import org.sonar.plugins.stash.coverage.CoverageSensor;
+import org.sonar.plugins.stash.issue.MarkdownPrinter;
 
 import com.google.common.collect.Lists;
 
@@ -27,6 +29,11 @@ public class StashPlugin extends SonarPlugin {
   private static final String DEFAULT_STASH_TIMEOUT_VALUE = "10000";
   private static final String DEFAULT_STASH_THRESHOLD_VALUE = "100";
   private static final boolean DEFAULT_STASH_ANALYSIS_OVERVIEW = true;
+  private static final String DEFAULT_STASH_HTTP_IO_THREADS = "0";
+  private static final String DEFAULT_STASH_REQUEST_CONCURRENCY = "8";
+  private static final String DEFAULT_STASH_DIFF_CONTEXT_LINES = "-1";
+  private static final String DEFAULT_STASH_DIFF_MEMORY_BUDGET = "0";
+  private static final String DEFAULT_STASH_ISSUE_TOP = "0";
 
   private static final String CONFIG_PAGE_SUB_CATEGORY_STASH = "Stash";
   
@@ -43,6 +50,12 @@ public class StashPlugin extends SonarPlugin {
   public static final String STASH_PROJECT = "sonar.stash.project";
   public static final String STASH_REPOSITORY = "sonar.stash.repository";
   public static final String STASH_PULL_REQUEST_ID = "sonar.stash.pullrequest.id";
+  public static final String STASH_DIFF_PER_PATH = "sonar.stash.diff.perpath";
+  public static final String STASH_DIFF_CONTEXT_LINES = "sonar.stash.diff.context.lines";
+  public static final String STASH_DIFF_MEMORY_BUDGET = "sonar.stash.diff.memory.budget";
+  public static final String STASH_COMMENTS_PER_FILE = "sonar.stash.comments.perfile";
+  public static final String STASH_COMMENTS_GROUP_BY_LINE = "sonar.stash.comments.group.byline";
+  public static final String STASH_RECONCILE_COMMENTS = "sonar.stash.comments.reconcile";
   public static final String STASH_RESET_COMMENTS = "sonar.stash.comments.reset";
   public static final String STASH_URL = "sonar.stash.url";
   public static final String STASH_LOGIN = "sonar.stash.login";
@@ -50,10 +63,19 @@ public class StashPlugin extends SonarPlugin {
   public static final String STASH_PASSWORD_ENVIRONMENT_VARIABLE = "sonar.stash.password.variable";
   public static final String STASH_REVIEWER_APPROVAL = "sonar.stash.reviewer.approval";
   public static final String STASH_ISSUE_THRESHOLD = "sonar.stash.issue.threshold";
+  public static final String STASH_ISSUE_FILTER_BY_LINE = "sonar.stash.issue.filter.byline";
+  public static final String STASH_ISSUE_TOP = "sonar.stash.issue.top";
+  public static final String STASH_ISSUE_TEMPLATE = "sonar.stash.template.issue";
+  public static final String STASH_COVERAGE_ISSUE_TEMPLATE = "sonar.stash.template.coverage";
   public static final String STASH_TIMEOUT = "sonar.stash.timeout";
   public static final String SONARQUBE_URL = "sonar.host.url";
   public static final String STASH_TASK_SEVERITY_THRESHOLD = "sonar.stash.task.issue.severity.threshold";
   public static final String STASH_INCLUDE_ANALYSIS_OVERVIEW = "sonar.stash.include.overview";
+  public static final String STASH_HTTP_NATIVE_TRANSPORT = "sonar.stash.http.native";
+  public static final String STASH_HTTP_IO_THREADS = "sonar.stash.http.io.threads";
+  public static final String STASH_HTTP_ALLOCATOR = "sonar.stash.http.allocator";
+  public static final String STASH_HTTP_THREAD_NAME = "sonar.stash.http.thread.name";
+  public static final String STASH_REQUEST_CONCURRENCY = "sonar.stash.request.concurrency";
 
   @Override
   public List getExtensions() {
@@ -66,6 +88,8 @@ public class StashPlugin extends SonarPlugin {
         CoverageSensor.class,
         CoverageProjectStore.class,
         InputFileCacheSensor.class,
+        StashPrefetcher.class,
+        StashPrefetchSensor.class,
         PropertyDefinition.builder(STASH_URL)
             .name("Stash base URL")
             .description("HTTP URL of Stash instance, such as http://yourhost.yourdomain/stash")
@@ -116,7 +140,103 @@ public class StashPlugin extends SonarPlugin {
             .type(PropertyType.BOOLEAN)
             .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
             .onQualifiers(Qualifiers.PROJECT)
-            .defaultValue(Boolean.toString(DEFAULT_STASH_ANALYSIS_OVERVIEW)).build()
+            .defaultValue(Boolean.toString(DEFAULT_STASH_ANALYSIS_OVERVIEW)).build(),
+        PropertyDefinition.builder(STASH_HTTP_NATIVE_TRANSPORT)
+            .name("Stash HTTP native transport")
+            .description("Use the native epoll transport to talk to Stash when available (Linux only)")
+            .type(PropertyType.BOOLEAN)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("false").build(),
+        PropertyDefinition.builder(STASH_HTTP_IO_THREADS)
+            .name("Stash HTTP IO threads")
+            .description("Number of IO threads of the Stash HTTP client, 0 to use twice the number of cores")
+            .type(PropertyType.INTEGER)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(DEFAULT_STASH_HTTP_IO_THREADS).build(),
+        PropertyDefinition.builder(STASH_HTTP_ALLOCATOR)
+            .name("Stash HTTP buffer allocator")
+            .description("Buffer allocator of the Stash HTTP client: DEFAULT, POOLED or UNPOOLED")
+            .type(PropertyType.SINGLE_SELECT_LIST)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(HttpClientSettings.Allocator.DEFAULT.name())
+            .options(HttpClientSettings.Allocator.DEFAULT.name(), HttpClientSettings.Allocator.POOLED.name(),
+                HttpClientSettings.Allocator.UNPOOLED.name()).build(),
+        PropertyDefinition.builder(STASH_HTTP_THREAD_NAME)
+            .name("Stash HTTP thread name")
+            .description("Name prefix of the Stash HTTP client threads")
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT).build(),
+        PropertyDefinition.builder(STASH_REQUEST_CONCURRENCY)
+            .name("Stash concurrent requests")
+            .description("Maximum number of requests sent to Stash at the same time by a bulk operation, such as a comment reset")
+            .type(PropertyType.INTEGER)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(DEFAULT_STASH_REQUEST_CONCURRENCY).build(),
+        PropertyDefinition.builder(STASH_COMMENTS_PER_FILE)
+            .name("Stash comments per file")
+            .description("Fetch the existing comments of each file with a separate request instead of reading them from the pull-request diff")
+            .type(PropertyType.BOOLEAN)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("false").build(),
+        PropertyDefinition.builder(STASH_COMMENTS_GROUP_BY_LINE)
+            .name("Stash comments grouped by line")
+            .description("Post one comment listing all the issues of a line instead of one comment per issue")
+            .type(PropertyType.BOOLEAN)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("false").build(),
+        PropertyDefinition.builder(STASH_DIFF_CONTEXT_LINES)
+            .name("Stash diff context lines")
+            .description("Number of context lines around the changes of the pull-request diff, -1 for the Stash default")
+            .type(PropertyType.INTEGER)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(DEFAULT_STASH_DIFF_CONTEXT_LINES).build(),
+        PropertyDefinition.builder(STASH_DIFF_PER_PATH)
+            .name("Stash diff per file")
+            .description("Only fetch the diff of the files with new issues, one request per file, unless the comments are reset or reconciled")
+            .type(PropertyType.BOOLEAN)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("false").build(),
+        PropertyDefinition.builder(STASH_DIFF_MEMORY_BUDGET)
+            .name("Stash diff memory budget")
+            .description("Memory, in MB, the lines of the pull-request diff may use before being moved to a temporary file, 0 for no limit")
+            .type(PropertyType.INTEGER)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(DEFAULT_STASH_DIFF_MEMORY_BUDGET).build(),
+        PropertyDefinition.builder(STASH_ISSUE_FILTER_BY_LINE)
+            .name("Stash issues on diff lines only")
+            .description("Only comment the issues on a line of the pull-request diff, the overview and the approval still count all the issues of its files")
+            .type(PropertyType.BOOLEAN)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("true").build(),
+        PropertyDefinition.builder(STASH_ISSUE_TOP)
+            .name("Stash most important issues")
+            .description("Number of issues to comment, the most severe first, even when the issue threshold is reached, 0 to comment all the issues below the threshold")
+            .type(PropertyType.INTEGER)
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(DEFAULT_STASH_ISSUE_TOP).build(),
+        PropertyDefinition.builder(STASH_ISSUE_TEMPLATE)
+            .name("Stash issue comment template")
+            .description("Markdown of the comment of an issue, and of its line in the overview. Variables: ${severity}, ${message}, ${rule}, ${ruleUrl}, ${path} and ${line}")
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(MarkdownPrinter.DEFAULT_ISSUE_TEMPLATE).build(),
+        PropertyDefinition.builder(STASH_COVERAGE_ISSUE_TEMPLATE)
+            .name("Stash coverage issue template")
+            .description("Markdown of a coverage issue in the overview. Variables: ${severity}, ${message}, ${path} and ${diffUrl}")
+            .subCategory(CONFIG_PAGE_SUB_CATEGORY_STASH)
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue(MarkdownPrinter.DEFAULT_COVERAGE_ISSUE_TEMPLATE).build()
     );
   }
 }
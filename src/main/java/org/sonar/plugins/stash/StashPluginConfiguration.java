@@ -74,6 +74,33 @@ public class StashPluginConfiguration implements BatchComponent {
         return settings.getBoolean(StashPlugin.STASH_RESET_COMMENTS);
     }
 
+    public boolean reconcileComments() {
+        return settings.getBoolean(StashPlugin.STASH_RECONCILE_COMMENTS);
+    }
+
+    public boolean fetchCommentsPerFile() {
+        return settings.getBoolean(StashPlugin.STASH_COMMENTS_PER_FILE);
+    }
+
+    public boolean groupCommentsByLine() {
+        return settings.getBoolean(StashPlugin.STASH_COMMENTS_GROUP_BY_LINE);
+    }
+
+    public boolean fetchDiffPerPath() {
+        return settings.getBoolean(StashPlugin.STASH_DIFF_PER_PATH);
+    }
+
+    public int getDiffContextLines() {
+        return settings.getInt(StashPlugin.STASH_DIFF_CONTEXT_LINES);
+    }
+
+    /**
+     * Memory budget of the diff report, in bytes, 0 for no limit.
+     */
+    public long getDiffMemoryBudget() {
+        return settings.getInt(StashPlugin.STASH_DIFF_MEMORY_BUDGET) * 1024L * 1024L;
+    }
+
     public String getTaskIssueSeverityThreshold() {
         return settings.getString(StashPlugin.STASH_TASK_SEVERITY_THRESHOLD);
     }
@@ -82,7 +109,47 @@ public class StashPluginConfiguration implements BatchComponent {
         return settings.getString(CoreProperties.SERVER_VERSION);
     }
 
+    /**
+     * Number of the most important issues to comment, 0 to comment all the
+     * issues below the threshold.
+     */
+    public int getTopIssueCount() {
+        return settings.getInt(StashPlugin.STASH_ISSUE_TOP);
+    }
+
+    public String getIssueTemplate() {
+        return settings.getString(StashPlugin.STASH_ISSUE_TEMPLATE);
+    }
+
+    public String getCoverageIssueTemplate() {
+        return settings.getString(StashPlugin.STASH_COVERAGE_ISSUE_TEMPLATE);
+    }
+
+    public boolean filterIssuesByLine() {
+        return settings.getBoolean(StashPlugin.STASH_ISSUE_FILTER_BY_LINE);
+    }
+
     public boolean includeAnalysisOverview() {
         return settings.getBoolean(StashPlugin.STASH_INCLUDE_ANALYSIS_OVERVIEW);
     }
-}
\ No newline at end of file
+
+    public boolean useHttpNativeTransport() {
+        return settings.getBoolean(StashPlugin.STASH_HTTP_NATIVE_TRANSPORT);
+    }
+
+    public int getHttpIoThreads() {
+        return settings.getInt(StashPlugin.STASH_HTTP_IO_THREADS);
+    }
+
+    public String getHttpAllocator() {
+        return settings.getString(StashPlugin.STASH_HTTP_ALLOCATOR);
+    }
+
+    public String getHttpThreadName() {
+        return settings.getString(StashPlugin.STASH_HTTP_THREAD_NAME);
+    }
+
+    public int getRequestConcurrency() {
+        return settings.getInt(StashPlugin.STASH_REQUEST_CONCURRENCY);
+    }
+}
@@ -2,12 +2,20 @@ package org.sonar.plugins.stash;
 
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import org.sonar.api.issue.Issue;
+import org.sonar.api.rule.Severity;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public final class StashPluginUtils {
 
@@ -42,4 +50,44 @@ public final class StashPluginUtils {
         return issues.stream().filter(i -> severity.equals(i.severity())).collect(Collectors.toList());
     }
 
+    /**
+     * Order of importance of the issues: by severity, the most severe first,
+     * then by rule, file and line.
+     */
+    public static Comparator<Issue> issuePriority(IssuePathResolver issuePathResolver) {
+        return Comparator.<Issue>comparingInt(i -> -Severity.ALL.indexOf(i.severity()))
+                .thenComparing(i -> i.ruleKey() == null ? null : i.ruleKey().toString(),
+                        Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(issuePathResolver::getIssuePath, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(Issue::line, Comparator.nullsFirst(Comparator.naturalOrder()));
+    }
+
+    /**
+     * Executor for the Stash requests of one step, its daemon threads are
+     * named after the step.
+     */
+    public static ExecutorService createExecutor(String name, int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactoryBuilder().setNameFormat("stash-" + name + "-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Wait for the future, rethrowing the unchecked exception it failed with as
+     * is.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
 }
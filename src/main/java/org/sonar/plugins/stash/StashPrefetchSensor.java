@@ -0,0 +1,39 @@
+package org.sonar.plugins.stash;
+
+import org.sonar.api.BatchComponent;
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.Sensor;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.resources.Project;
+
+/*
+ * Runs first so the Stash requests overlap with the rest of the analysis.
+ */
+@Phase(name = Phase.Name.PRE)
+public class StashPrefetchSensor implements Sensor, BatchComponent {
+    private final StashPluginConfiguration stashPluginConfiguration;
+    private final StashRequestFacade stashRequestFacade;
+    private final StashPrefetcher stashPrefetcher;
+
+    public StashPrefetchSensor(StashPluginConfiguration stashPluginConfiguration, StashRequestFacade stashRequestFacade,
+            StashPrefetcher stashPrefetcher) {
+        this.stashPluginConfiguration = stashPluginConfiguration;
+        this.stashRequestFacade = stashRequestFacade;
+        this.stashPrefetcher = stashPrefetcher;
+    }
+
+    @Override
+    public void analyse(Project module, SensorContext context) {
+        stashPrefetcher.prefetch(stashRequestFacade);
+    }
+
+    @Override
+    public boolean shouldExecuteOnProject(Project project) {
+        return stashPluginConfiguration.hasToNotifyStash();
+    }
+
+    @Override
+    public String toString() {
+        return "Stash Plugin Prefetch";
+    }
+}
@@ -0,0 +1,153 @@
+package org.sonar.plugins.stash;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchComponent;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.plugins.stash.client.StashClient;
+import org.sonar.plugins.stash.client.StashCredentials;
+import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.issue.StashDiffReport;
+import org.sonar.plugins.stash.issue.StashPullRequest;
+import org.sonar.plugins.stash.issue.StashUser;
+
+/**
+ * Fetches the Stash data which does not depend on the analysis (reviewer,
+ * pull-request and diff) while the analysis is running, so the post job does
+ * not have to wait for it.
+ *
+ * The data is fetched once per batch and shared by all the modules. The diff
+ * is parsed once, within the diff memory budget, into a report the sensors and
+ * the post jobs only look up, through a view of the files they need.
+ *
+ * The getters return null when nothing was prefetched or the prefetch failed,
+ * callers are expected to fetch the data themselves in that case.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class StashPrefetcher implements BatchComponent {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StashPrefetcher.class);
+
+    private final StashPluginConfiguration config;
+
+    private boolean started;
+    private StashClient stashClient;
+    private volatile CompletableFuture<StashUser> sonarQubeReviewer;
+    private volatile CompletableFuture<StashPullRequest> pullRequest;
+    private volatile CompletableFuture<StashDiffReport> diff;
+
+    public StashPrefetcher(StashPluginConfiguration stashPluginConfiguration) {
+        this.config = stashPluginConfiguration;
+    }
+
+    /**
+     * Start fetching the Stash data, only the first call has an effect.
+     */
+    public synchronized void prefetch(StashRequestFacade stashRequestFacade) {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        String stashURL;
+        StashCredentials stashCredentials;
+        PullRequestRef pr;
+        try {
+            stashURL = stashRequestFacade.getStashURL();
+            stashCredentials = stashRequestFacade.getCredentials();
+            pr = stashRequestFacade.getPullRequest();
+
+            stashClient = new StashClient(stashURL, stashCredentials, config.getStashTimeout(), config.getSonarQubeVersion(),
+                    stashRequestFacade.getHttpClientSettings());
+        } catch (StashConfigurationException e) {
+            // reported by the post job
+            LOGGER.debug("Stash data not prefetched: {}", e.getMessage());
+            return;
+        }
+
+        LOGGER.debug("Prefetching Stash data of pull-request {} #{}", pr.repository(), pr.pullRequestId());
+        sonarQubeReviewer = stashClient.getUserAsync(stashCredentials.getLogin());
+        pullRequest = stashClient.getPullRequestAsync(pr);
+        // the diff of each file is fetched once the issues are known
+        if (!stashRequestFacade.isDiffPerPath()) {
+            diff = stashClient.getPullRequestDiffsAsync(pr, stashRequestFacade.isDiffWithComments(),
+                    config.getDiffContextLines(), config.getDiffMemoryBudget());
+        }
+    }
+
+    @CheckForNull
+    public StashUser getSonarQubeReviewer() {
+        return await(sonarQubeReviewer, "reviewer");
+    }
+
+    @CheckForNull
+    public StashPullRequest getPullRequest() {
+        return await(pullRequest, "pull-request");
+    }
+
+    /**
+     * The shared report, or a view of it with the changes of the given files
+     * only. It must not be modified.
+     *
+     * @param paths
+     *            files to keep, null for all of them
+     */
+    @CheckForNull
+    public StashDiffReport getPullRequestDiffReport(Set<String> paths) {
+        StashDiffReport diffReport = await(diff, "diff");
+        if (diffReport == null || paths == null) {
+            return diffReport;
+        }
+        return diffReport.getView(paths);
+    }
+
+    /**
+     * Called by the container at the end of the batch, even if the analysis
+     * failed: pending requests are aborted.
+     */
+    public synchronized void stop() {
+        cancel(sonarQubeReviewer);
+        cancel(pullRequest);
+        cancel(diff);
+
+        if (stashClient != null) {
+            stashClient.close();
+            stashClient = null;
+        }
+    }
+
+    private static void cancel(CompletableFuture<?> future) {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    private <T> T await(CompletableFuture<T> future, String what) {
+        if (future == null) {
+            return null;
+        }
+
+        try {
+            return future.get(config.getStashTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            LOGGER.debug("Unable to prefetch Stash {}", what, e);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Stash Plugin Prefetcher";
+    }
+}
@@ -4,9 +4,21 @@ import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -16,12 +28,15 @@ import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.scan.filesystem.PathResolver;
+import org.sonar.plugins.stash.client.HttpClientSettings;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.coverage.CoverageProjectStore;
 import org.sonar.plugins.stash.exceptions.StashClientException;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
 import org.sonar.plugins.stash.issue.MarkdownPrinter;
+import org.sonar.plugins.stash.issue.MarkdownTemplate;
+import org.sonar.plugins.stash.issue.ReportIssue;
 import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
 import org.sonar.plugins.stash.issue.StashDiffReport;
@@ -42,6 +57,8 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
     private final InputFileCache inputFileCache;
     private CoverageProjectStore coverageProjectStore;
     private PathResolver pathResolver = new PathResolver();
+    private final MarkdownTemplate issueTemplate;
+    private final MarkdownTemplate coverageIssueTemplate;
 
     public StashRequestFacade(StashPluginConfiguration stashPluginConfiguration, InputFileCache inputFileCache,
             StashProjectBuilder projectBuilder, CoverageProjectStore coverageProjectStore) {
@@ -49,10 +66,52 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         this.inputFileCache = inputFileCache;
         this.workingDir = projectBuilder.getWorkingDir();
         this.coverageProjectStore = coverageProjectStore;
+
+        // compiled once for all the comments
+        this.issueTemplate = compileTemplate(StashPlugin.STASH_ISSUE_TEMPLATE, config.getIssueTemplate(),
+                MarkdownPrinter::compileIssueTemplate, MarkdownPrinter.ISSUE_TEMPLATE);
+        this.coverageIssueTemplate = compileTemplate(StashPlugin.STASH_COVERAGE_ISSUE_TEMPLATE,
+                config.getCoverageIssueTemplate(), MarkdownPrinter::compileCoverageIssueTemplate,
+                MarkdownPrinter.COVERAGE_ISSUE_TEMPLATE);
+    }
+
+    private static MarkdownTemplate compileTemplate(String property, String template,
+            Function<String, MarkdownTemplate> compiler, MarkdownTemplate defaultTemplate) {
+        if (StringUtils.isEmpty(template)) {
+            return defaultTemplate;
+        }
+
+        try {
+            return compiler.apply(template);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid {}, using the default template: {}", property, e.getMessage());
+            return defaultTemplate;
+        }
     }
 
-    public List<Issue> extractIssueReport(ProjectIssues projectIssues, StashDiffReport diffReport) {
-        return SonarQubeCollector.extractIssueReport(projectIssues, diffReport, this);
+    private String printIssuesMarkdown(List<Issue> issues) {
+        return MarkdownPrinter.printIssuesMarkdown(issues, config.getSonarQubeURL(), issueTemplate, this);
+    }
+
+    /**
+     * @param topIssues
+     *            fed with the issues on a line of the diff, the only ones
+     *            which can be commented, null if not needed
+     */
+    public List<Issue> extractIssueReport(ProjectIssues projectIssues, StashDiffReport diffReport, TopIssues topIssues) {
+        return SonarQubeCollector.extractIssueReport(projectIssues, diffReport, this, topIssues);
+    }
+
+    /**
+     * The issues of the report to comment: all of them, or only the ones on a
+     * line of the diff if requested. The report itself is left untouched for
+     * the overview and the approval.
+     */
+    public List<Issue> getIssuesToComment(List<Issue> issueReport, StashDiffReport diffReport) {
+        if (!config.filterIssuesByLine()) {
+            return issueReport;
+        }
+        return SonarQubeCollector.extractIssuesOnDiffLines(issueReport, diffReport, this);
     }
 
     /**
@@ -63,7 +122,7 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         try {
             String report = MarkdownPrinter.printReportMarkdown(pr, stashClient.getBaseUrl(), config.getSonarQubeURL(),
                     issueReport, issueThreshold, coverageProjectStore.getProjectCoverage(),
-                    coverageProjectStore.getPreviousProjectCoverage(), this);
+                    coverageProjectStore.getPreviousProjectCoverage(), this, issueTemplate, coverageIssueTemplate);
             stashClient.postCommentOnPullRequest(pr, report);
 
             LOGGER.info("SonarQube analysis overview has been reported to Stash.");
@@ -106,33 +165,63 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
     /**
      * Add a reviewer to the current pull-request.
      */
-    public void addPullRequestReviewer(PullRequestRef pr, String user, StashClient stashClient) {
-        try {
-            StashPullRequest pullRequest = stashClient.getPullRequest(pr);
-
-            // user not yet in reviewer list
-            StashUser reviewer = pullRequest.getReviewer(user);
-            if (reviewer == null) {
-                ArrayList<StashUser> reviewers = new ArrayList<>(pullRequest.getReviewers());
-                reviewers.add(stashClient.getUser(user));
-
-                stashClient.addPullRequestReviewer(pr, pullRequest.getVersion(), reviewers);
+    public void addPullRequestReviewer(PullRequestRef pr, StashUser user, StashClient stashClient) {
+        addPullRequestReviewer(pr, user, null, stashClient);
+    }
 
-                LOGGER.info("User \"{}\" is now a reviewer of the pull-request {} #{}", user, pr.pullRequestId(), pr.project(),
-                        pr.repository());
+    /**
+     * Add a reviewer to the current pull-request, starting from a pull-request
+     * fetched earlier if available. As its version may be outdated by now, the
+     * update is retried once with a freshly fetched pull-request.
+     */
+    public void addPullRequestReviewer(PullRequestRef pr, StashUser user, StashPullRequest prefetchedPullRequest,
+            StashClient stashClient) {
+        try {
+            if (prefetchedPullRequest != null) {
+                try {
+                    updatePullRequestReviewers(pr, user, prefetchedPullRequest, stashClient);
+                    return;
+                } catch (StashClientException e) {
+                    LOGGER.debug("Unable to add reviewer based on the prefetched pull-request, retrying", e);
+                }
             }
+            updatePullRequestReviewers(pr, user, stashClient.getPullRequest(pr), stashClient);
         } catch (StashClientException e) {
             LOGGER.error("Unable to add a new reviewer to the pull-request", e);
         }
     }
 
+    private void updatePullRequestReviewers(PullRequestRef pr, StashUser user, StashPullRequest pullRequest,
+            StashClient stashClient) throws StashClientException {
+        // user not yet in reviewer list
+        StashUser reviewer = pullRequest.getReviewer(user.getSlug());
+        if (reviewer == null) {
+            ArrayList<StashUser> reviewers = new ArrayList<>(pullRequest.getReviewers());
+            reviewers.add(user);
+
+            stashClient.addPullRequestReviewer(pr, pullRequest.getVersion(), reviewers);
+
+            LOGGER.info("User \"{}\" is now a reviewer of the pull-request {} #{}", user.getSlug(), pr.pullRequestId(),
+                    pr.project(), pr.repository());
+        }
+    }
+
     /**
      * Push SonarQube report into the pull-request as comments.
      */
     public void postSonarQubeReport(PullRequestRef pr, List<Issue> issueReport, StashDiffReport diffReport,
             StashClient stashClient) {
+        postSonarQubeReport(pr, issueReport, diffReport, Collections.<StashComment>emptyList(), stashClient);
+    }
+
+    /**
+     * Push SonarQube report into the pull-request as comments, once the given
+     * comments of the diff report have been deleted by a reset.
+     */
+    public void postSonarQubeReport(PullRequestRef pr, List<Issue> issueReport, StashDiffReport diffReport,
+            Collection<StashComment> deletedComments, StashClient stashClient) {
         try {
-            postCommentPerIssue(pr, issueReport, diffReport, stashClient);
+            postCommentPerIssue(pr, issueReport, diffReport, deletedComments, stashClient);
 
             LOGGER.info("New SonarQube issues have been reported to Stash.");
 
@@ -143,11 +232,91 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
     }
 
     /**
-     * Post one comment by found issue on Stash.
+     * Post one comment by found issue on Stash, or by line with issues when
+     * the comments are grouped by line.
      */
     void postCommentPerIssue(PullRequestRef pr, Collection<Issue> issues, StashDiffReport diffReport, StashClient stashClient)
             throws StashClientException {
+        postCommentPerIssue(pr, issues, diffReport, Collections.<StashComment>emptyList(), stashClient);
+    }
+
+    /*
+     * The diff report was fetched before the reset, the deleted comments must
+     * not be taken for comments already posted.
+     */
+    void postCommentPerIssue(PullRequestRef pr, Collection<Issue> issues, StashDiffReport diffReport,
+            Collection<StashComment> deletedComments, StashClient stashClient) throws StashClientException {
+
+        Map<String, StashCommentReport> commentsByFile;
+        if (config.fetchCommentsPerFile()) {
+            commentsByFile = getCommentsByFile(pr, issues, diffReport, stashClient);
+        } else {
+            commentsByFile = getCommentsByFile(diffReport, deletedComments);
+        }
+
+        // Severity available to create a task
+        List<String> taskSeverities = getReportedSeverities();
+
+        for (List<Issue> lineIssues : groupIssues(issues)) {
+            postIssueComment(pr, lineIssues, commentsByFile, diffReport, stashClient, taskSeverities);
+        }
+    }
+
+    /*
+     * Issues posted as one comment: all the issues of a line when the comments
+     * are grouped by line, each issue alone otherwise. The issues of a line
+     * are ordered by importance, so their comment does not change from one
+     * analysis to the next and is recognized as already posted.
+     */
+    private List<List<Issue>> groupIssues(Collection<Issue> issues) {
+        if (!config.groupCommentsByLine()) {
+            return issues.stream().map(Collections::singletonList).collect(Collectors.toList());
+        }
+
+        Map<CommentKey, List<Issue>> issuesByLine = new LinkedHashMap<>();
+        for (Issue issue : issues) {
+            issuesByLine.computeIfAbsent(new CommentKey(getIssuePath(issue), getIssueLine(issue), null),
+                    key -> new ArrayList<>()).add(issue);
+        }
+
+        Comparator<Issue> priority = StashPluginUtils.issuePriority(this).thenComparing(Issue::message,
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        List<List<Issue>> result = new ArrayList<>(issuesByLine.values());
+        for (List<Issue> lineIssues : result) {
+            lineIssues.sort(priority);
+        }
+        return result;
+    }
+
+    private static String getIssueKeys(List<Issue> issues) {
+        return issues.stream().map(Issue::key).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Index the comments already embedded in the diff report by file path. The
+     * comments of the diff are anchored on their destination line, like the
+     * SonarQube issues. The deleted comments are skipped.
+     */
+    private static Map<String, StashCommentReport> getCommentsByFile(StashDiffReport diffReport,
+            Collection<StashComment> deletedComments) {
+        Set<Long> deletedIds = deletedComments.stream().map(StashComment::getId).collect(Collectors.toSet());
+
+        Map<String, StashCommentReport> commentsByFile = new HashMap<>();
+        for (StashComment comment : diffReport.getComments()) {
+            if (deletedIds.contains(comment.getId())) {
+                continue;
+            }
+            commentsByFile.computeIfAbsent(comment.getPath(), path -> new StashCommentReport()).add(comment);
+        }
+        return commentsByFile;
+    }
 
+    /**
+     * Fetch the comments of each file with an issue from Stash, one request per
+     * file.
+     */
+    private Map<String, StashCommentReport> getCommentsByFile(PullRequestRef pr, Collection<Issue> issues,
+            StashDiffReport diffReport, StashClient stashClient) throws StashClientException {
         // to optimize request to Stash, builds comment match ordered by
         // filepath
         Map<String, StashCommentReport> commentsByFile = new HashMap<>();
@@ -164,42 +333,44 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
                 commentsByFile.put(path, comments);
             }
         }
-
-        // Severity available to create a task
-        List<String> taskSeverities = getReportedSeverities();
-
-        for (Issue issue : issues) {
-            postIssueComment(pr, issue, commentsByFile, diffReport, stashClient, taskSeverities);
-        }
+        return commentsByFile;
     }
 
-    private void postIssueComment(PullRequestRef pr, Issue issue, Map<String, StashCommentReport> commentsByFile,
+    /*
+     * The issues are all on the same line.
+     */
+    private void postIssueComment(PullRequestRef pr, List<Issue> issues, Map<String, StashCommentReport> commentsByFile,
             StashDiffReport diffReport, StashClient stashClient, List<String> taskSeverities) throws StashClientException {
-        String path = getIssuePath(issue);
+        String path = getIssuePath(issues.get(0));
         StashCommentReport comments = commentsByFile.get(path);
-        String commentContent = MarkdownPrinter.printIssueMarkdown(issue, config.getSonarQubeURL());
-        Integer issueLine = issue.line();
-        // FIXME move this somewhere else
-        if (issueLine == null) {
-            issueLine = 0;
-        }
+        String commentContent = printIssuesMarkdown(issues);
+        long issueLine = getIssueLine(issues.get(0));
 
         // if comment not already pushed to Stash
         if (comments != null && comments.contains(commentContent, path, issueLine)) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Comment \"{}\" already pushed on file {} ({})", issue.key(), path, issueLine);
+                LOGGER.debug("Comment \"{}\" already pushed on file {} ({})", getIssueKeys(issues), path, issueLine);
             }
             return;
         }
 
+        postIssueComment(pr, issues, path, issueLine, commentContent, diffReport, stashClient, taskSeverities);
+    }
+
+    /*
+     * False when the line is not in the diff view, the comment cannot be
+     * posted.
+     */
+    private boolean postIssueComment(PullRequestRef pr, List<Issue> issues, String path, long issueLine, String commentContent,
+            StashDiffReport diffReport, StashClient stashClient, List<String> taskSeverities) throws StashClientException {
         // check if issue belongs to the Stash diff view
         String type = diffReport.getType(path, issueLine);
         if (type == null) {
             if (LOGGER.isInfoEnabled()) {
                 LOGGER.info("Comment \"{}\" cannot be pushed to Stash like it does not belong to diff view - {} (line: {})",
-                        issue.key(), path, issueLine);
+                        getIssueKeys(issues), path, issueLine);
             }
-            return;
+            return false;
         }
 
         long line = diffReport.getLine(path, issueLine);
@@ -207,18 +378,20 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         StashComment comment = stashClient.postCommentLineOnPullRequest(pr, commentContent, path, line, type);
 
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Comment \"{}\" has been created ({}) on file {} ({})", issue.key(), type, path, line);
+            LOGGER.debug("Comment \"{}\" has been created ({}) on file {} ({})", getIssueKeys(issues), type, path, line);
         }
 
-        // Create task linked to the comment if configured
-        if (taskSeverities.contains(issue.severity())) {
-            stashClient.postTaskOnComment(issue.message(), comment.getId());
+        // Create task linked to the comment if configured, one per issue
+        for (Issue issue : issues) {
+            if (taskSeverities.contains(issue.severity())) {
+                stashClient.postTaskOnComment(issue.message(), comment.getId());
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Comment \"{}\" has been linked to a Stash task", comment.getId());
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Comment \"{}\" has been linked to a Stash task", comment.getId());
+                }
             }
         }
-
+        return true;
     }
 
     public StashCredentials getCredentials() throws StashConfigurationException {
@@ -251,6 +424,41 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         return result;
     }
 
+    /**
+     * Optional tuning of the Stash HTTP client.
+     *
+     * @throws StashConfigurationException
+     *             if unable to parse one of the parameters
+     */
+    public HttpClientSettings getHttpClientSettings() throws StashConfigurationException {
+        HttpClientSettings.Builder builder = HttpClientSettings.builder();
+        builder.setNativeTransport(config.useHttpNativeTransport());
+
+        try {
+            builder.setIoThreads(config.getHttpIoThreads());
+        } catch (NumberFormatException e) {
+            throw new StashConfigurationException(
+                    "Unable to get " + StashPlugin.STASH_HTTP_IO_THREADS + " from plugin configuration", e);
+        }
+
+        String allocator = config.getHttpAllocator();
+        if (!StringUtils.isBlank(allocator)) {
+            try {
+                builder.setAllocator(HttpClientSettings.Allocator.valueOf(allocator.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new StashConfigurationException(
+                        "Unable to get " + StashPlugin.STASH_HTTP_ALLOCATOR + " from plugin configuration", e);
+            }
+        }
+
+        String threadName = config.getHttpThreadName();
+        if (!StringUtils.isBlank(threadName)) {
+            builder.setThreadPoolName(threadName);
+        }
+
+        return builder.build();
+    }
+
     /**
      * Mandatory Stash URL option.
      *
@@ -339,6 +547,15 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         return result;
     }
 
+    /**
+     * The comments embedded in the diff are only needed to reset or reconcile
+     * the comments, or to detect duplicates without the per-file requests.
+     * Otherwise the much lighter diff without comments is enough.
+     */
+    public boolean isDiffWithComments() {
+        return config.resetComments() || config.reconcileComments() || !config.fetchCommentsPerFile();
+    }
+
     /**
      * Get all changes exposed through the Stash pull-request.
      */
@@ -346,7 +563,8 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
         StashDiffReport result = null;
 
         try {
-            result = stashClient.getPullRequestDiffs(pr);
+            result = stashClient.getPullRequestDiffs(pr, isDiffWithComments(), config.getDiffContextLines(), null,
+                    config.getDiffMemoryBudget());
 
             LOGGER.debug("Stash differential report retrieved from pull request {} #{}", pr.repository(), pr.pullRequestId());
 
@@ -358,38 +576,301 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
     }
 
     /**
-     * Reset all comments linked to a pull-request.
+     * The diff of each file with issues can be fetched instead of the whole
+     * pull-request diff, unless the comments of all the files are needed to
+     * reset or reconcile them.
      */
-    public void resetComments(PullRequestRef pr, StashDiffReport diffReport, StashUser sonarUser, StashClient stashClient) {
-        for (StashComment comment : diffReport.getComments()) {
+    public boolean isDiffPerPath() {
+        return config.fetchDiffPerPath() && isDiffOfIssuePathsOnly();
+    }
+
+    /**
+     * Only the changes of the files with issues are needed, unless the
+     * comments of all the files are reset or reconciled.
+     */
+    public boolean isDiffOfIssuePathsOnly() {
+        return !config.resetComments() && !config.reconcileComments();
+    }
+
+    /**
+     * Paths of the files with new issues, the only files whose changes can be
+     * commented. The files analyzed as unchanged are not part of the
+     * pull-request, their diff is not requested.
+     */
+    public Set<String> getIssuePaths(ProjectIssues projectIssues) {
+        Set<String> result = new TreeSet<>();
+        for (Issue issue : projectIssues.issues()) {
+            if (issue.isNew() && !isUnchangedFile(issue)) {
+                String path = getIssuePath(issue);
+                if (path != null) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isUnchangedFile(Issue issue) {
+        if (issue instanceof ReportIssue) {
+            return false;
+        }
+        InputFileCache.CachedFile file = inputFileCache.getFile(issue.componentKey());
+        return file != null && file.getStatus() == InputFile.Status.SAME;
+    }
+
+    /**
+     * Get the changes of the given files only, null if they cannot be
+     * retrieved. The other files of the pull-request diff are skipped without
+     * being parsed or, when the diff is fetched per path, not fetched at all.
+     */
+    public StashDiffReport getPullRequestDiffReport(PullRequestRef pr, Collection<String> paths, StashClient stashClient) {
+        if (paths.isEmpty()) {
+            return new StashDiffReport();
+        }
+
+        if (!config.fetchDiffPerPath()) {
+            StashDiffReport result = null;
             try {
-                if (sonarUser.getId() != comment.getAuthor().getId()) {
-                    continue;
+                result = stashClient.getPullRequestDiffs(pr, isDiffWithComments(), config.getDiffContextLines(),
+                        new HashSet<>(paths), config.getDiffMemoryBudget());
+
+                LOGGER.debug("Stash differential report of {} files retrieved from pull request {} #{}", paths.size(),
+                        pr.repository(), pr.pullRequestId());
+
+            } catch (StashClientException e) {
+                LOGGER.error("Unable to get Stash differential report from Stash", e);
+            }
+            return result;
+        }
+
+        return getPullRequestDiffReportPerPath(pr, paths, stashClient);
+    }
+
+    /*
+     * The diffs of the files are fetched concurrently, up to the configured
+     * number of requests at a time, and merged into one report, null if one of
+     * them cannot be retrieved.
+     */
+    private StashDiffReport getPullRequestDiffReportPerPath(PullRequestRef pr, Collection<String> paths,
+            StashClient stashClient) {
+        StashDiffReport result = new StashDiffReport();
+        result.setMemoryBudget(config.getDiffMemoryBudget());
+        boolean withComments = isDiffWithComments();
+        int contextLines = config.getDiffContextLines();
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = StashPluginUtils.createExecutor("diff",
+                Math.min(config.getRequestConcurrency(), paths.size()));
+        try {
+            List<CompletableFuture<StashDiffReport>> diffs = paths.stream()
+                    .map(path -> CompletableFuture.supplyAsync(
+                            () -> getPullRequestDiffReport(pr, path, withComments, contextLines, stashClient, failures),
+                            executor))
+                    .collect(Collectors.toList());
+
+            for (CompletableFuture<StashDiffReport> diff : diffs) {
+                StashDiffReport report = StashPluginUtils.join(diff);
+                if (report != null) {
+                    result.add(report);
                 }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failures.get() > 0) {
+            LOGGER.error("Unable to get Stash differential report of {} of {} files", failures.get(), paths.size());
+            return null;
+        }
+
+        LOGGER.debug("Stash differential report of {} files retrieved from pull request {} #{}", paths.size(),
+                pr.repository(), pr.pullRequestId());
+
+        return result;
+    }
+
+    private static StashDiffReport getPullRequestDiffReport(PullRequestRef pr, String path, boolean withComments,
+            int contextLines, StashClient stashClient, AtomicInteger failures) {
+        try {
+            return stashClient.getPullRequestDiffs(pr, path, withComments, contextLines);
+        } catch (StashClientException e) {
+            failures.incrementAndGet();
+            LOGGER.error("Unable to get Stash differential report of {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the pull-request details, null if they cannot be retrieved: callers
+     * needing them are expected to fetch them again.
+     */
+    public StashPullRequest getStashPullRequest(PullRequestRef pr, StashClient stashClient) {
+        StashPullRequest result = null;
 
+        try {
+            result = stashClient.getPullRequest(pr);
+        } catch (StashClientException e) {
+            LOGGER.debug("Unable to get pull-request {} #{} from Stash", pr.repository(), pr.pullRequestId(), e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reset all comments linked to a pull-request.
+     *
+     * Comments are deleted concurrently, up to the configured number of
+     * requests at a time. The tasks of a comment are deleted before the
+     * comment itself.
+     *
+     * @return the comments deleted, the others could not be
+     */
+    public List<StashComment> resetComments(PullRequestRef pr, StashDiffReport diffReport, StashUser sonarUser,
+            StashClient stashClient) {
+        List<StashComment> comments = new ArrayList<>();
+        for (StashComment comment : diffReport.getComments()) {
+            if (sonarUser.getId() != comment.getAuthor().getId()) {
+                continue;
+            }
+
+            if (comment.containsPermanentTasks()) {
+                LOGGER.debug(
+                        "Comment \"{}\" (path:\"{}\", line:\"{}\")"
+                                + "CANNOT be deleted because one of its tasks is not deletable.",
+                        comment.getId(), comment.getPath(), comment.getLine());
+                continue;
+            }
+
+            comments.add(comment);
+        }
+
+        List<StashComment> deletedComments = deleteComments(pr, comments, stashClient);
+        int failures = comments.size() - deletedComments.size();
+        if (failures > 0) {
+            LOGGER.error("{} of {} comments reported to Stash by user \"{}\" could not be deleted", failures,
+                    comments.size(), sonarUser.getName());
+        } else {
+            LOGGER.info("SonarQube issues reported to Stash by user \"{}\" have been reset", sonarUser.getName());
+        }
+        return deletedComments;
+    }
+
+    /**
+     * Bring the comments of the SonarQube user in line with the issue report:
+     * comments already matching an issue (same path, line and content) are
+     * kept, outdated comments are deleted and missing ones are posted.
+     */
+    public void reconcileComments(PullRequestRef pr, List<Issue> issueReport, StashDiffReport diffReport, StashUser sonarUser,
+            StashClient stashClient) {
+
+        // existing comments of the SonarQube user, by content
+        Map<CommentKey, List<StashComment>> existingComments = new HashMap<>();
+        for (StashComment comment : diffReport.getComments()) {
+            if (sonarUser.getId() == comment.getAuthor().getId()) {
+                existingComments.computeIfAbsent(new CommentKey(comment.getPath(), comment.getLine(), comment.getMessage()),
+                        key -> new ArrayList<>()).add(comment);
+            }
+        }
+
+        List<List<Issue>> issueComments = groupIssues(issueReport);
+        List<List<Issue>> missingIssues = new ArrayList<>();
+        for (List<Issue> issues : issueComments) {
+            Issue issue = issues.get(0);
+            List<StashComment> matchingComments = existingComments.get(new CommentKey(getIssuePath(issue), getIssueLine(issue),
+                    printIssuesMarkdown(issues)));
+            if (matchingComments == null || matchingComments.isEmpty()) {
+                missingIssues.add(issues);
+            } else {
+                matchingComments.remove(0);
+            }
+        }
+
+        List<StashComment> staleComments = new ArrayList<>();
+        for (List<StashComment> comments : existingComments.values()) {
+            for (StashComment comment : comments) {
                 if (comment.containsPermanentTasks()) {
-                    LOGGER.debug(
-                            "Comment \"{}\" (path:\"{}\", line:\"{}\")"
-                                    + "CANNOT be deleted because one of its tasks is not deletable.",
-                            comment.getId(), comment.getPath(), comment.getLine());
-                    continue;
+                    LOGGER.debug("Comment \"{}\" (path:\"{}\", line:\"{}\") is outdated"
+                            + " but CANNOT be deleted because one of its tasks is not deletable.", comment.getId(),
+                            comment.getPath(), comment.getLine());
+                } else {
+                    staleComments.add(comment);
                 }
+            }
+        }
 
-                // delete tasks linked to the current comment
-                for (StashTask task : comment.getTasks()) {
-                    LOGGER.debug("Remove comment task {}", task);
-                    stashClient.deleteTaskOnComment(task);
+        int deleted = deleteComments(pr, staleComments, stashClient).size();
+        int failures = staleComments.size() - deleted;
+
+        List<String> taskSeverities = getReportedSeverities();
+        int posted = 0;
+        int skipped = 0;
+        for (List<Issue> issues : missingIssues) {
+            Issue issue = issues.get(0);
+            try {
+                if (postIssueComment(pr, issues, getIssuePath(issue), getIssueLine(issue), printIssuesMarkdown(issues),
+                        diffReport, stashClient, taskSeverities)) {
+                    posted++;
+                } else {
+                    skipped++;
                 }
+            } catch (StashClientException e) {
+                failures++;
+                LOGGER.error("Unable to post comment for issue {}", getIssueKeys(issues), e);
+            }
+        }
 
-                LOGGER.debug("Remove comment {}", comment);
-                stashClient.deletePullRequestComment(pr, comment);
+        LOGGER.info("SonarQube issues reconciled with Stash: {} kept, {} deleted, {} new, {} skipped, {} failed",
+                issueComments.size() - missingIssues.size(), deleted, posted, skipped, failures);
+    }
 
-            } catch (StashClientException e) {
-                LOGGER.error("Unable to delete comment {}", comment, e);
+    private static long getIssueLine(Issue issue) {
+        Integer issueLine = issue.line();
+        return issueLine == null ? 0 : issueLine;
+    }
+
+    /*
+     * Delete the comments concurrently, up to the configured number of
+     * requests at a time, and return the comments deleted.
+     */
+    private List<StashComment> deleteComments(PullRequestRef pr, List<StashComment> comments, StashClient stashClient) {
+        List<StashComment> result = new ArrayList<>();
+        if (!comments.isEmpty()) {
+            ExecutorService executor = StashPluginUtils.createExecutor("delete",
+                    Math.min(config.getRequestConcurrency(), comments.size()));
+            try {
+                List<CompletableFuture<Boolean>> deletions = comments.stream()
+                        .map(comment -> CompletableFuture.supplyAsync(() -> deleteComment(pr, comment, stashClient),
+                                executor))
+                        .collect(Collectors.toList());
+
+                for (int i = 0; i < comments.size(); i++) {
+                    if (StashPluginUtils.join(deletions.get(i))) {
+                        result.add(comments.get(i));
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
             }
         }
+        return result;
+    }
 
-        LOGGER.info("SonarQube issues reported to Stash by user \"{}\" have been reset", sonarUser.getName());
+    private static boolean deleteComment(PullRequestRef pr, StashComment comment, StashClient stashClient) {
+        try {
+            // delete tasks linked to the current comment
+            for (StashTask task : comment.getTasks()) {
+                LOGGER.debug("Remove comment task {}", task);
+                stashClient.deleteTaskOnComment(task);
+            }
+
+            LOGGER.debug("Remove comment {}", comment);
+            stashClient.deletePullRequestComment(pr, comment);
+            return true;
+
+        } catch (StashClientException e) {
+            LOGGER.error("Unable to delete comment {}", comment, e);
+            return false;
+        }
     }
 
     /**
@@ -420,22 +901,54 @@ public class StashRequestFacade implements BatchComponent, IssuePathResolver {
     // StashRequestFacade
     @Override
     public String getIssuePath(Issue issue) {
-        InputFile inputFile = inputFileCache.getInputFile(issue.componentKey());
-        if (inputFile == null) {
-            LOGGER.debug("Cannot file inputFile for issueKey {} by key {}", issue, issue.componentKey());
-            LOGGER.debug("Cache is {}", inputFileCache.getInputFileByKeyMap());
-            return null;
+        if (issue instanceof ReportIssue) {
+            return ((ReportIssue) issue).getPath();
+        }
+
+        // resolved when the file was cached
+        String path = inputFileCache.getPath(issue.componentKey());
+        if (path == null) {
+            LOGGER.debug("Cannot find file for issueKey {} by key {} among {} cached files", issue, issue.componentKey(),
+                    inputFileCache.size());
         }
+        return path;
+    }
+
+    /**
+     * Path of the file in the repository, as used by the Stash diff.
+     */
+    public String getPath(InputFile inputFile) {
+        String path = pathResolver.relativePath(workingDir, inputFile.file());
+        LOGGER.debug("Resolved path of {} in {}: {}", inputFile, workingDir, path);
+        return path;
+    }
 
-        String resolvedRelativePath = pathResolver.relativePath(workingDir, inputFile.file());
+    /*
+     * Identity of a comment for the reconciliation.
+     */
+    private static final class CommentKey {
+        private final String path;
+        private final long line;
+        private final String message;
+
+        CommentKey(String path, long line, String message) {
+            this.path = path;
+            this.line = line;
+            this.message = message;
+        }
 
-        LOGGER.debug("InputFile = {}", inputFile);
-        LOGGER.debug("Project working dir = {}", workingDir);
-        LOGGER.debug("inputFile.file() = {}", inputFile.file());
-        LOGGER.debug("inputFile.absolutePath() = {}", inputFile.absolutePath());
-        LOGGER.debug("inputFile.relativePath() = {}", inputFile.relativePath());
-        LOGGER.debug("Resolved path = {}", resolvedRelativePath);
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof CommentKey)) {
+                return false;
+            }
+            CommentKey other = (CommentKey) object;
+            return line == other.line && Objects.equals(path, other.path) && Objects.equals(message, other.message);
+        }
 
-        return resolvedRelativePath;
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, line, message);
+        }
     }
 }
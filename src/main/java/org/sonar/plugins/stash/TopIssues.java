@@ -0,0 +1,50 @@
+package org.sonar.plugins.stash;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import org.sonar.api.issue.Issue;
+
+/**
+ * The most important of the issues it is given, see
+ * {@link StashPluginUtils#issuePriority(IssuePathResolver)}. Only the selected
+ * issues are kept, in a heap bounded to their count, so the issues can be fed
+ * while they are read.
+ *
+ * Not thread-safe: the issues are fed by a single thread.
+ */
+public class TopIssues implements Consumer<Issue> {
+
+    private final int count;
+    private final Comparator<Issue> priority;
+    // the least important of the selected issues is on top of the heap
+    private final PriorityQueue<Issue> heap;
+
+    public TopIssues(int count, IssuePathResolver issuePathResolver) {
+        this.count = count;
+        this.priority = StashPluginUtils.issuePriority(issuePathResolver);
+        this.heap = new PriorityQueue<>(Math.max(1, count) + 1, priority.reversed());
+    }
+
+    @Override
+    public void accept(Issue issue) {
+        if (heap.size() < count) {
+            heap.add(issue);
+        } else if (count > 0 && priority.compare(issue, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(issue);
+        }
+    }
+
+    /**
+     * The selected issues, in order of importance.
+     */
+    public List<Issue> getIssues() {
+        List<Issue> result = new ArrayList<>(heap);
+        result.sort(priority);
+        return result;
+    }
+}
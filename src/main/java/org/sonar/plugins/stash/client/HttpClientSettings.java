@@ -0,0 +1,100 @@
+package org.sonar.plugins.stash.client;
+
+/**
+ * Netty level tuning of the HTTP client used to talk to Stash.
+ *
+ * All values default to the AsyncHttpClient defaults, so an empty
+ * configuration behaves like a plain {@code DefaultAsyncHttpClientConfig}.
+ */
+public class HttpClientSettings {
+
+    public enum Allocator {
+        // keep the AsyncHttpClient/Netty default allocator
+        DEFAULT,
+        POOLED,
+        UNPOOLED
+    }
+
+    private final boolean nativeTransport;
+    private final int ioThreads;
+    private final Allocator allocator;
+    private final String threadPoolName;
+
+    private HttpClientSettings(boolean nativeTransport, int ioThreads, Allocator allocator, String threadPoolName) {
+        this.nativeTransport = nativeTransport;
+        this.ioThreads = ioThreads;
+        this.allocator = allocator;
+        this.threadPoolName = threadPoolName;
+    }
+
+    /**
+     * Use the native epoll transport when it is available on the current
+     * platform.
+     */
+    public boolean useNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Number of Netty IO threads, 0 means the AsyncHttpClient default.
+     */
+    public int ioThreads() {
+        return ioThreads;
+    }
+
+    public Allocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Prefix of the IO thread names, null means the AsyncHttpClient default.
+     */
+    public String threadPoolName() {
+        return threadPoolName;
+    }
+
+    public static HttpClientSettings defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClientSettings [nativeTransport=" + nativeTransport + ", ioThreads=" + ioThreads + ", allocator="
+                + allocator + ", threadPoolName=" + threadPoolName + "]";
+    }
+
+    public static class Builder {
+        private boolean nativeTransport;
+        private int ioThreads;
+        private Allocator allocator = Allocator.DEFAULT;
+        private String threadPoolName;
+
+        public Builder setNativeTransport(boolean value) {
+            nativeTransport = value;
+            return this;
+        }
+
+        public Builder setIoThreads(int value) {
+            ioThreads = value;
+            return this;
+        }
+
+        public Builder setAllocator(Allocator value) {
+            allocator = value;
+            return this;
+        }
+
+        public Builder setThreadPoolName(String value) {
+            threadPoolName = value;
+            return this;
+        }
+
+        public HttpClientSettings build() {
+            return new HttpClientSettings(nativeTransport, ioThreads, allocator, threadPoolName);
+        }
+    }
+}
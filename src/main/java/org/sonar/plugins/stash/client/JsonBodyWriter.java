@@ -0,0 +1,223 @@
+package org.sonar.plugins.stash.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a JSON request body as UTF-8 straight into a byte buffer, which is
+ * then handed to the HTTP client without being copied.
+ *
+ * Each thread reuses its buffer: a body must be sent, and its response
+ * received, before the next one is written. The separators are deduced from
+ * the last byte written, so the callers only give the names and values in
+ * order.
+ */
+final class JsonBodyWriter {
+
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    // large buffers are not kept, a few comments are much bigger than the others
+    private static final int MAX_KEPT_CAPACITY = 64 * 1024;
+    // longest encoding of a single char, a control char escaped in hexadecimal
+    private static final int MAX_CHAR_LENGTH = 6;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<JsonBodyWriter> WRITER = ThreadLocal.withInitial(JsonBodyWriter::new);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    /**
+     * Empty writer of the current thread, the body it wrote last must have
+     * been sent.
+     */
+    static JsonBodyWriter forRequest() {
+        JsonBodyWriter writer = WRITER.get();
+        if (writer.buffer.length > MAX_KEPT_CAPACITY) {
+            writer.buffer = new byte[INITIAL_CAPACITY];
+        }
+        writer.length = 0;
+        return writer;
+    }
+
+    JsonBodyWriter beginObject() {
+        separate();
+        return writeByte('{');
+    }
+
+    JsonBodyWriter endObject() {
+        return writeByte('}');
+    }
+
+    JsonBodyWriter beginArray() {
+        separate();
+        return writeByte('[');
+    }
+
+    JsonBodyWriter endArray() {
+        return writeByte(']');
+    }
+
+    JsonBodyWriter name(String name) {
+        value(name);
+        return writeByte(':');
+    }
+
+    JsonBodyWriter value(String value) {
+        separate();
+        if (value == null) {
+            return writeNull();
+        }
+
+        writeByte('"');
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            ensureCapacity(MAX_CHAR_LENGTH);
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer[length++] = '\\';
+                buffer[length++] = (byte) c;
+            } else if (c < 0x20) {
+                writeControlChar(c);
+            } else if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                // malformed, replaced as String.getBytes() does
+                buffer[length++] = '?';
+            }
+        }
+        return writeByte('"');
+    }
+
+    JsonBodyWriter value(Long value) {
+        if (value == null) {
+            separate();
+            return writeNull();
+        }
+        return value(value.longValue());
+    }
+
+    JsonBodyWriter value(long value) {
+        separate();
+        if (value == Long.MIN_VALUE) {
+            // cannot be negated
+            return writeAscii(Long.toString(value));
+        }
+
+        long remaining = value;
+        if (remaining < 0) {
+            writeByte('-');
+            remaining = -remaining;
+        }
+
+        int digits = 1;
+        for (long bound = 10; digits < 19 && remaining >= bound; bound *= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * The written body, backed by the buffer of the writer.
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Stop reusing the buffer, when the body it holds may still be sent.
+     */
+    void discardBuffer() {
+        buffer = new byte[INITIAL_CAPACITY];
+        length = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void separate() {
+        if (length == 0) {
+            return;
+        }
+        byte last = buffer[length - 1];
+        if (last != '{' && last != '[' && last != ':') {
+            writeByte(',');
+        }
+    }
+
+    private void writeControlChar(char c) {
+        buffer[length++] = '\\';
+        switch (c) {
+        case '\b':
+            buffer[length++] = 'b';
+            break;
+        case '\f':
+            buffer[length++] = 'f';
+            break;
+        case '\n':
+            buffer[length++] = 'n';
+            break;
+        case '\r':
+            buffer[length++] = 'r';
+            break;
+        case '\t':
+            buffer[length++] = 't';
+            break;
+        default:
+            buffer[length++] = 'u';
+            buffer[length++] = '0';
+            buffer[length++] = '0';
+            buffer[length++] = HEX_DIGITS[c >> 4];
+            buffer[length++] = HEX_DIGITS[c & 0xf];
+        }
+    }
+
+    private JsonBodyWriter writeNull() {
+        ensureCapacity(NULL.length);
+        System.arraycopy(NULL, 0, buffer, length, NULL.length);
+        length += NULL.length;
+        return this;
+    }
+
+    private JsonBodyWriter writeAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    private JsonBodyWriter writeByte(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package org.sonar.plugins.stash.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -37,6 +45,11 @@ import org.sonar.plugins.stash.issue.StashTask;
 import org.sonar.plugins.stash.issue.StashUser;
 import org.sonar.plugins.stash.issue.collector.StashCollector;
 
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.util.internal.PlatformDependent;
+
 public class StashClient implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StashClient.class);
@@ -55,7 +68,8 @@ public class StashClient implements AutoCloseable {
     private static final String API_ONE_PR = API_ALL_PR + "{3,number,#}";
 
     private static final String API_ONE_PR_ALL_COMMENTS = API_ONE_PR + "/comments";
-    private static final String API_ONE_PR_DIFF = API_ONE_PR + "/diff?withComments=true";
+    private static final String API_ONE_PR_DIFF = API_ONE_PR + "/diff{4}?withComments={5}";
+    private static final String API_ONE_PR_DIFF_CONTEXT = API_ONE_PR_DIFF + "&contextLines={6,number,#}";
     private static final String API_ONE_PR_APPROVAL = API_ONE_PR + "/approve";
     private static final String API_ONE_PR_COMMENT_PATH = API_ONE_PR + "/comments?path={4}&start={5,number,#}";
 
@@ -74,10 +88,15 @@ public class StashClient implements AutoCloseable {
     private static final ContentType JSON_CONTENT_TYPE = new ContentType("application", "json", null);
 
     public StashClient(String url, StashCredentials credentials, int stashTimeout, String sonarQubeVersion) {
+        this(url, credentials, stashTimeout, sonarQubeVersion, HttpClientSettings.defaults());
+    }
+
+    public StashClient(String url, StashCredentials credentials, int stashTimeout, String sonarQubeVersion,
+            HttpClientSettings httpClientSettings) {
         this.baseUrl = url;
         this.credentials = credentials;
         this.stashTimeout = stashTimeout;
-        this.httpClient = createHttpClient(sonarQubeVersion);
+        this.httpClient = createHttpClient(sonarQubeVersion, httpClientSettings);
     }
 
     public String getBaseUrl() {
@@ -92,8 +111,9 @@ public class StashClient implements AutoCloseable {
 
         String request = MessageFormat.format(API_ONE_PR_ALL_COMMENTS, baseUrl, pr.project(), pr.repository(),
                 pr.pullRequestId());
-        JsonObject json = new JsonObject();
-        json.put("text", report);
+        JsonBodyWriter json = JsonBodyWriter.forRequest().beginObject();
+        json.name("text").value(report);
+        json.endObject();
 
         postCreate(request, json, MessageFormat.format(COMMENT_POST_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()));
     }
@@ -134,18 +154,71 @@ public class StashClient implements AutoCloseable {
     }
 
     public StashDiffReport getPullRequestDiffs(PullRequestRef pr) throws StashClientException {
-        StashDiffReport result = null;
+        return getPullRequestDiffs(pr, true, -1);
+    }
+
+    /**
+     * @param withComments
+     *            embed the comments, and their tasks, in the diff
+     * @param contextLines
+     *            number of context lines around the changes, negative for the
+     *            Stash default
+     */
+    public StashDiffReport getPullRequestDiffs(PullRequestRef pr, boolean withComments, int contextLines)
+            throws StashClientException {
+        return getPullRequestDiffs(pr, null, withComments, contextLines);
+    }
+
+    /**
+     * @param path
+     *            file to get the changes of, null for the whole pull-request
+     */
+    public StashDiffReport getPullRequestDiffs(PullRequestRef pr, String path, boolean withComments, int contextLines)
+            throws StashClientException {
+        return getPullRequestDiffs(pr, path, withComments, contextLines, null, 0);
+    }
+
+    /**
+     * @param paths
+     *            files to keep from the whole pull-request diff, null for all
+     *            of them
+     * @param memoryBudget
+     *            memory the lines of the report may use while it is built, 0
+     *            for no limit
+     */
+    public StashDiffReport getPullRequestDiffs(PullRequestRef pr, boolean withComments, int contextLines, Set<String> paths,
+            long memoryBudget) throws StashClientException {
+        return getPullRequestDiffs(pr, null, withComments, contextLines, paths, memoryBudget);
+    }
 
+    private StashDiffReport getPullRequestDiffs(PullRequestRef pr, String path, boolean withComments, int contextLines,
+            Set<String> paths, long memoryBudget) throws StashClientException {
+        String request = getPullRequestDiffsUrl(pr, path, withComments, contextLines);
+        Response response = executeRequest(httpClient.prepareGet(request), null, HttpURLConnection.HTTP_OK,
+                MessageFormat.format(COMMENT_GET_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()));
+        return extractDiffs(response, paths, memoryBudget);
+    }
+
+    /*
+     * The diff is parsed while the body is read, without a String nor a JSON
+     * tree of the whole response. The body itself, held by the response and
+     * by its copy, is counted in the memory budget of the report.
+     */
+    private static StashDiffReport extractDiffs(Response response, Set<String> paths, long memoryBudget)
+            throws StashClientException {
+        if (!response.hasResponseBody()) {
+            return null;
+        }
+        checkContentType(response);
+
+        byte[] body = response.getResponseBodyAsBytes();
+        long budget = memoryBudget <= 0 ? 0 : Math.max(1, memoryBudget - 2L * body.length);
         try {
-            String request = MessageFormat.format(API_ONE_PR_DIFF, baseUrl, pr.project(), pr.repository(), pr.pullRequestId());
-            JsonObject jsonDiffs = get(request,
-                    MessageFormat.format(COMMENT_GET_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()));
-            result = StashCollector.extractDiffs(jsonDiffs);
+            return StashCollector.extractDiffs(
+                    new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8), paths, budget);
         } catch (StashReportExtractionException e) {
             throw new StashClientException(e);
         }
-
-        return result;
     }
 
     public StashComment postCommentLineOnPullRequest(PullRequestRef pr, String message, String path, long line, String type)
@@ -153,23 +226,21 @@ public class StashClient implements AutoCloseable {
         String request = MessageFormat.format(API_ONE_PR_ALL_COMMENTS, baseUrl, pr.project(), pr.repository(),
                 pr.pullRequestId());
 
-        JsonObject anchor = new JsonObject();
-        if (line != 0L) {
-            anchor.put("line", line);
-            anchor.put("lineType", type);
-        }
-
         String fileType = "TO";
         if (StringUtils.equals(type, StashPlugin.CONTEXT_ISSUE_TYPE)) {
             fileType = "FROM";
         }
-        anchor.put("fileType", fileType);
-
-        anchor.put("path", path);
 
-        JsonObject json = new JsonObject();
-        json.put("text", message);
-        json.put("anchor", anchor);
+        JsonBodyWriter json = JsonBodyWriter.forRequest().beginObject();
+        json.name("text").value(message);
+        json.name("anchor").beginObject();
+        if (line != 0L) {
+            json.name("line").value(line);
+            json.name("lineType").value(type);
+        }
+        json.name("fileType").value(fileType);
+        json.name("path").value(path);
+        json.endObject().endObject();
 
         JsonObject response = postCreate(request, json,
                 MessageFormat.format(COMMENT_POST_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()));
@@ -177,6 +248,39 @@ public class StashClient implements AutoCloseable {
         return StashCollector.extractComment(response, path, line);
     }
 
+    /**
+     * @param memoryBudget
+     *            memory the report may use while it is built, 0 for no limit
+     */
+    public CompletableFuture<StashDiffReport> getPullRequestDiffsAsync(PullRequestRef pr, boolean withComments,
+            int contextLines, long memoryBudget) {
+        String request = getPullRequestDiffsUrl(pr, null, withComments, contextLines);
+        return getAsync(request, MessageFormat.format(COMMENT_GET_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()),
+                response -> extractDiffs(response, null, memoryBudget));
+    }
+
+    private String getPullRequestDiffsUrl(PullRequestRef pr, String path, boolean withComments, int contextLines) {
+        String pathSuffix = path == null ? "" : "/" + encodePath(path);
+        if (contextLines < 0) {
+            return MessageFormat.format(API_ONE_PR_DIFF, baseUrl, pr.project(), pr.repository(), pr.pullRequestId(),
+                    pathSuffix, withComments);
+        }
+        return MessageFormat.format(API_ONE_PR_DIFF_CONTEXT, baseUrl, pr.project(), pr.repository(), pr.pullRequestId(),
+                pathSuffix, withComments, contextLines);
+    }
+
+    private static String encodePath(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : StringUtils.split(path, '/')) {
+            try {
+                segments.add(URLEncoder.encode(segment, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return StringUtils.join(segments, '/');
+    }
+
     public StashUser getUser(String userSlug) throws StashClientException {
 
         String request = MessageFormat.format(USER_API, baseUrl, userSlug);
@@ -185,6 +289,12 @@ public class StashClient implements AutoCloseable {
         return StashCollector.extractUser(response);
     }
 
+    public CompletableFuture<StashUser> getUserAsync(String userSlug) {
+        String request = MessageFormat.format(USER_API, baseUrl, userSlug);
+        return getAsync(request, MessageFormat.format(USER_GET_ERROR_MESSAGE, userSlug),
+                response -> StashCollector.extractUser(extractResponse(response)));
+    }
+
     public StashPullRequest getPullRequest(PullRequestRef pr) throws StashClientException {
         String request = MessageFormat.format(API_ONE_PR, baseUrl, pr.project(), pr.repository(), pr.pullRequestId());
         JsonObject response = get(request,
@@ -193,26 +303,27 @@ public class StashClient implements AutoCloseable {
         return StashCollector.extractPullRequest(pr, response);
     }
 
+    public CompletableFuture<StashPullRequest> getPullRequestAsync(PullRequestRef pr) {
+        String request = MessageFormat.format(API_ONE_PR, baseUrl, pr.project(), pr.repository(), pr.pullRequestId());
+        return getAsync(request, MessageFormat.format(PULL_REQUEST_GET_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()),
+                response -> StashCollector.extractPullRequest(pr, extractResponse(response)));
+    }
+
     public void addPullRequestReviewer(PullRequestRef pr, long pullRequestVersion, ArrayList<StashUser> reviewers)
             throws StashClientException {
         String request = MessageFormat.format(API_ONE_PR, baseUrl, pr.project(), pr.repository(), pr.pullRequestId());
 
-        JsonObject json = new JsonObject();
+        JsonBodyWriter json = JsonBodyWriter.forRequest().beginObject();
 
-        JsonArray jsonReviewers = new JsonArray();
+        json.name("reviewers").beginArray();
         for (StashUser reviewer : reviewers) {
-            JsonObject reviewerName = new JsonObject();
-            reviewerName.put("name", reviewer.getName());
-
-            JsonObject user = new JsonObject();
-            user.put("user", reviewerName);
-
-            jsonReviewers.add(user);
+            json.beginObject().name("user").beginObject().name("name").value(reviewer.getName()).endObject().endObject();
         }
+        json.endArray();
 
-        json.put("reviewers", jsonReviewers);
-        json.put("id", pr.pullRequestId());
-        json.put("version", pullRequestVersion);
+        json.name("id").value(pr.pullRequestId());
+        json.name("version").value(pullRequestVersion);
+        json.endObject();
 
         put(request, json, MessageFormat.format(PULL_REQUEST_PUT_ERROR_MESSAGE, pr.repository(), pr.pullRequestId()));
     }
@@ -231,13 +342,13 @@ public class StashClient implements AutoCloseable {
     public void postTaskOnComment(String message, Long commentId) throws StashClientException {
         String request = baseUrl + TASKS_API;
 
-        JsonObject anchor = new JsonObject();
-        anchor.put("id", commentId);
-        anchor.put("type", "COMMENT");
-
-        JsonObject json = new JsonObject();
-        json.put("anchor", anchor);
-        json.put("text", message);
+        JsonBodyWriter json = JsonBodyWriter.forRequest().beginObject();
+        json.name("anchor").beginObject();
+        json.name("id").value(commentId);
+        json.name("type").value("COMMENT");
+        json.endObject();
+        json.name("text").value(message);
+        json.endObject();
 
         postCreate(request, json, MessageFormat.format(TASK_POST_ERROR_MESSAGE, commentId));
     }
@@ -259,11 +370,32 @@ public class StashClient implements AutoCloseable {
         return performRequest(httpClient.prepareGet(url), null, HttpURLConnection.HTTP_OK, errorMessage);
     }
 
-    private JsonObject post(String url, JsonObject body, String errorMessage) throws StashClientException {
+    /*
+     * The returned future completes exceptionally with a StashClientException.
+     * Cancelling it does not abort the request, closing the client does.
+     */
+    private <T> CompletableFuture<T> getAsync(String url, String errorMessage, ResponseExtractor<T> extractor) {
+        BoundRequestBuilder requestBuilder = prepareRequest(httpClient.prepareGet(url));
+        requestBuilder.setRequestTimeout(stashTimeout);
+
+        return requestBuilder.execute().toCompletableFuture().handle((response, failure) -> {
+            if (failure != null) {
+                throw new CompletionException(new StashClientException(failure));
+            }
+            try {
+                validateResponse(null, response, HttpURLConnection.HTTP_OK, errorMessage);
+                return extractor.extract(response);
+            } catch (StashClientException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private JsonObject post(String url, JsonBodyWriter body, String errorMessage) throws StashClientException {
         return performRequest(httpClient.preparePost(url), body, HttpURLConnection.HTTP_OK, errorMessage);
     }
 
-    private JsonObject postCreate(String url, JsonObject body, String errorMessage) throws StashClientException {
+    private JsonObject postCreate(String url, JsonBodyWriter body, String errorMessage) throws StashClientException {
         return performRequest(httpClient.preparePost(url), body, HttpURLConnection.HTTP_CREATED, errorMessage);
     }
 
@@ -275,37 +407,54 @@ public class StashClient implements AutoCloseable {
         return delete(url, HttpURLConnection.HTTP_NO_CONTENT, errorMessage);
     }
 
-    private JsonObject put(String url, JsonObject body, String errorMessage) throws StashClientException {
+    private JsonObject put(String url, JsonBodyWriter body, String errorMessage) throws StashClientException {
         return performRequest(httpClient.preparePut(url), body, HttpURLConnection.HTTP_OK, errorMessage);
     }
 
-    private JsonObject performRequest(BoundRequestBuilder requestBuilder, JsonObject body, int expectedStatusCode,
+    /*
+     * The body is sent from the buffer of the writer, without being copied.
+     */
+    private JsonObject performRequest(BoundRequestBuilder requestBuilder, JsonBodyWriter body, int expectedStatusCode,
             String errorMessage) throws StashClientException {
         if (body != null) {
-            requestBuilder.setBody(body.toJson());
+            requestBuilder.setBody(body.toByteBuffer());
         }
-        Realm realm = new Realm.Builder(credentials.getLogin(), credentials.getPassword()).setUsePreemptiveAuth(true)
-                .setScheme(Realm.AuthScheme.BASIC).build();
-        requestBuilder.setRealm(realm);
-        requestBuilder.setFollowRedirect(true);
-        requestBuilder.addHeader("Content-Type", "application/json");
-        requestBuilder.addHeader("Accept", "application/json");
+        return extractResponse(executeRequest(requestBuilder, body, expectedStatusCode, errorMessage));
+    }
+
+    private Response executeRequest(BoundRequestBuilder requestBuilder, JsonBodyWriter body, int expectedStatusCode,
+            String errorMessage) throws StashClientException {
+        prepareRequest(requestBuilder);
 
         try {
             Response response = requestBuilder.execute().get(stashTimeout, TimeUnit.MILLISECONDS);
 
             validateResponse(body, response, expectedStatusCode, errorMessage);
-            return extractResponse(response);
+            return response;
         } catch (ExecutionException | TimeoutException | InterruptedException e) {
+            if (body != null) {
+                // the body may still be sent after a timeout, its buffer is not reused
+                body.discardBuffer();
+            }
             throw new StashClientException(e);
         }
     }
 
-    private static void validateResponse(JsonObject body, Response response, int expectedStatusCode, String message)
+    private BoundRequestBuilder prepareRequest(BoundRequestBuilder requestBuilder) {
+        Realm realm = new Realm.Builder(credentials.getLogin(), credentials.getPassword()).setUsePreemptiveAuth(true)
+                .setScheme(Realm.AuthScheme.BASIC).build();
+        requestBuilder.setRealm(realm);
+        requestBuilder.setFollowRedirect(true);
+        requestBuilder.addHeader("Content-Type", "application/json");
+        requestBuilder.addHeader("Accept", "application/json");
+        return requestBuilder;
+    }
+
+    private static void validateResponse(JsonBodyWriter body, Response response, int expectedStatusCode, String message)
             throws StashClientException {
         int responseCode = response.getStatusCode();
         if (responseCode != expectedStatusCode) {
-            LOGGER.debug("Request body {}", (body == null) ? null : body.toJson());
+            LOGGER.debug("Request body {}", body);
             LOGGER.debug("Response {}", response);
             throw new StashClientException(message + " Received " + responseCode + ": " + formatStashApiError(response));
         }
@@ -319,10 +468,7 @@ public class StashClient implements AutoCloseable {
             return null;
         }
 
-        String contentType = response.getHeader("Content-Type");
-        if (!JSON_CONTENT_TYPE.match(StringUtils.strip(contentType))) {
-            throw new StashClientException("Received response with type " + contentType + " instead of JSON");
-        }
+        checkContentType(response);
         try {
             Object obj = Jsoner.deserialize(body);
             return (JsonObject) obj;
@@ -331,6 +477,13 @@ public class StashClient implements AutoCloseable {
         }
     }
 
+    private static void checkContentType(Response response) throws StashClientException {
+        String contentType = response.getHeader("Content-Type");
+        if (!JSON_CONTENT_TYPE.match(StringUtils.strip(contentType))) {
+            throw new StashClientException("Received response with type " + contentType + " instead of JSON");
+        }
+    }
+
     private static String formatStashApiError(Response response) throws StashClientException {
         JsonArray errors;
         JsonObject responseJson = extractResponse(response);
@@ -372,8 +525,57 @@ public class StashClient implements AutoCloseable {
                 version, AsyncHttpClientConfigDefaults.defaultUserAgent());
     }
 
-    AsyncHttpClient createHttpClient(String sonarQubeVersion) {
-        return new DefaultAsyncHttpClient(
-                new DefaultAsyncHttpClientConfig.Builder().setUserAgent(getUserAgent(sonarQubeVersion)).build());
+    AsyncHttpClient createHttpClient(String sonarQubeVersion, HttpClientSettings settings) {
+        DefaultAsyncHttpClientConfig.Builder builder = new DefaultAsyncHttpClientConfig.Builder()
+                .setUserAgent(getUserAgent(sonarQubeVersion));
+
+        if (settings.useNativeTransport()) {
+            if (Epoll.isAvailable()) {
+                builder.setUseNativeTransport(true);
+            } else {
+                LOGGER.info("Native transport is not available on this platform, falling back to NIO: {}",
+                        Epoll.unavailabilityCause().getMessage());
+            }
+        }
+
+        if (settings.ioThreads() > 0) {
+            builder.setIoThreadsCount(settings.ioThreads());
+        }
+
+        if (settings.threadPoolName() != null) {
+            builder.setThreadPoolName(settings.threadPoolName());
+        }
+
+        switch (settings.allocator()) {
+        case POOLED:
+            builder.setAllocator(createPooledAllocator(settings.ioThreads()));
+            break;
+        case UNPOOLED:
+            builder.setAllocator(UnpooledByteBufAllocator.DEFAULT);
+            break;
+        default:
+            break;
+        }
+
+        LOGGER.debug("Creating HTTP client with {}", settings);
+        return new DefaultAsyncHttpClient(builder.build());
+    }
+
+    /*
+     * The default pooled allocator creates two arenas per core, which is
+     * wasteful when only a few IO threads are configured: one arena per IO
+     * thread is enough as each thread only allocates from its own arena.
+     */
+    private static PooledByteBufAllocator createPooledAllocator(int ioThreads) {
+        if (ioThreads <= 0) {
+            return PooledByteBufAllocator.DEFAULT;
+        }
+        return new PooledByteBufAllocator(PlatformDependent.directBufferPreferred(), ioThreads, ioThreads,
+                PooledByteBufAllocator.defaultPageSize(), PooledByteBufAllocator.defaultMaxOrder());
+    }
+
+    @FunctionalInterface
+    private interface ResponseExtractor<T> {
+        T extract(Response response) throws StashClientException;
     }
 }
@@ -24,7 +24,10 @@ import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.Measure;
 import org.sonar.api.resources.Project;
 import org.sonar.api.resources.Resource;
+import org.sonar.plugins.stash.InputFileCache;
 import org.sonar.plugins.stash.StashPluginConfiguration;
+import org.sonar.plugins.stash.StashPrefetcher;
+import org.sonar.plugins.stash.issue.StashDiffReport;
 import org.sonar.wsclient.Sonar;
 
 // We have to execute after all coverage sensors, otherwise we are not able to read their measurements
@@ -41,20 +44,33 @@ public class CoverageSensor implements Sensor, BatchComponent {
     private final StashPluginConfiguration config;
     private ActiveRules activeRules;
     private CoverageProjectStore coverageProjectStore;
+    private final InputFileCache inputFileCache;
+    private final StashPrefetcher stashPrefetcher;
 
     public CoverageSensor(FileSystem fileSystem, ResourcePerspectives perspectives, StashPluginConfiguration config,
-            ActiveRules activeRules, CoverageProjectStore coverageProjectStore) {
+            ActiveRules activeRules, CoverageProjectStore coverageProjectStore, InputFileCache inputFileCache,
+            StashPrefetcher stashPrefetcher) {
         this.fileSystem = fileSystem;
         this.perspectives = perspectives;
         this.config = config;
         this.activeRules = activeRules;
         this.coverageProjectStore = coverageProjectStore;
+        this.inputFileCache = inputFileCache;
+        this.stashPrefetcher = stashPrefetcher;
     }
 
     @Override
     public void analyse(Project module, SensorContext context) {
         Sonar sonar = createSonarClient(config);
 
+        // shared by all the modules, null if it could not be prefetched
+        StashDiffReport diffReport = stashPrefetcher.getPullRequestDiffReport(null);
+
+        // The files are listed again rather than taken from the InputFileCache:
+        // their measures only exist once the coverage sensors have run, long
+        // after the cache is filled, every file counts in the project coverage,
+        // and the issues are created on the InputFile, which the cache does not
+        // keep.
         for (InputFile f : fileSystem.inputFiles(fileSystem.predicates().all())) {
             LOGGER.debug("Getting coverage for {}, status = {}, language = {}, lines = {}, type = {}", f, f.status(),
                     f.language(), f.lines(), f.type());
@@ -81,6 +97,16 @@ public class CoverageSensor implements Sensor, BatchComponent {
 
             // get lines_to_cover, uncovered_lines
             if (linesToCover != null && uncoveredLines != null) {
+                coverageProjectStore.updateMeasurements(linesToCover, uncoveredLines);
+
+                // issues on files out of the pull-request are not reported,
+                // the path was resolved when the files were cached
+                String path = inputFileCache.getPath(fileResource.getEffectiveKey());
+                if (diffReport != null && path != null && !diffReport.hasPath(path)) {
+                    LOGGER.debug("File {} is not part of the pull-request diff", f);
+                    continue;
+                }
+
                 Double previousLineCoverage = getLineCoverage(sonar, fileResource.getEffectiveKey());
                 if (previousLineCoverage == null) {
                     LOGGER.debug("Previous coverage from sonar is null");
@@ -88,8 +114,6 @@ public class CoverageSensor implements Sensor, BatchComponent {
 
                 double coverage = calculateCoverage(linesToCover, uncoveredLines);
 
-                coverageProjectStore.updateMeasurements(linesToCover, uncoveredLines);
-
                 double previousCoverage = 0d;
                 if (previousLineCoverage != null) {
                     previousCoverage = previousLineCoverage;
@@ -0,0 +1,68 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.sonar.api.rule.RuleKey;
+
+/**
+ * Markdown of the issues of one report, shared by the line comments and the
+ * overview which are rendered at the same time.
+ *
+ * The issues with the same template, rule, severity and message are rendered
+ * once, as is the link to each rule.
+ */
+public final class IssueMarkdownCache {
+
+    private final ConcurrentMap<Key, String> issueMarkdowns = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, String> ruleUrls = new ConcurrentHashMap<>();
+
+    public String getIssueMarkdown(MarkdownTemplate template, String sonarQubeURL, RuleKey ruleKey, String severity,
+            String message, Supplier<String> renderer) {
+        return issueMarkdowns.computeIfAbsent(new Key(template, sonarQubeURL, ruleKey, severity, message),
+                k -> renderer.get());
+    }
+
+    public String getRuleUrl(String sonarQubeURL, RuleKey ruleKey, Supplier<String> renderer) {
+        return ruleUrls.computeIfAbsent(new Key(null, sonarQubeURL, ruleKey, null, null), k -> renderer.get());
+    }
+
+    public int size() {
+        return issueMarkdowns.size();
+    }
+
+    private static final class Key {
+        // compiled once, compared by identity
+        private final MarkdownTemplate template;
+        private final String sonarQubeURL;
+        private final RuleKey ruleKey;
+        private final String severity;
+        private final String message;
+
+        Key(MarkdownTemplate template, String sonarQubeURL, RuleKey ruleKey, String severity, String message) {
+            this.template = template;
+            this.sonarQubeURL = sonarQubeURL;
+            this.ruleKey = ruleKey;
+            this.severity = severity;
+            this.message = message;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+            return template == key.template && Objects.equals(sonarQubeURL, key.sonarQubeURL)
+                    && Objects.equals(ruleKey, key.ruleKey) && Objects.equals(severity, key.severity)
+                    && Objects.equals(message, key.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(template, sonarQubeURL, ruleKey, severity, message);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import static org.sonar.plugins.stash.StashPluginUtils.formatPercentage;
 import static org.sonar.plugins.stash.StashPluginUtils.getUniqueRulesBySeverity;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +15,7 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.issue.Issue;
+import org.sonar.api.rule.RuleKey;
 import org.sonar.api.rule.Severity;
 import org.sonar.plugins.stash.IssuePathResolver;
 import org.sonar.plugins.stash.PullRequestRef;
@@ -24,24 +28,65 @@ public final class MarkdownPrinter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(StashProjectBuilder.class);
 	
+  // Stash limits comments to Short.MAX_VALUE characters
   private static final int SOFT_SUMMARY_COMMENT_MAX_LENGTH = 30000;
-  private static final int HARD_SUMMARY_COMMENT_MAX_LENGTH = Short.MAX_VALUE;
   private static final String NEW_LINE = "\n";
   private static final String CODING_RULES_RULE_KEY = "coding_rules#rule_key=";
+  private static final String SKIPPED_ISSUES = "The rest issues are skipped";
+  private static final String LIST_ITEM = "- ";
   private static final List<String> orderedSeverities = Lists.reverse(Severity.ALL);
+
+  // variables of the templates, in the order of their values
+  public static final List<String> ISSUE_VARIABLES = Arrays.asList("severity", "message", "rule", "ruleUrl", "path", "line");
+  public static final List<String> COVERAGE_ISSUE_VARIABLES = Arrays.asList("severity", "message", "path", "diffUrl");
+
+  public static final String DEFAULT_ISSUE_TEMPLATE = "*${severity}* - ${message} [[${rule}](${ruleUrl})]";
+  public static final String DEFAULT_COVERAGE_ISSUE_TEMPLATE = "*${severity}* - ${message} [[file](${diffUrl})]";
+
+  public static final MarkdownTemplate ISSUE_TEMPLATE = compileIssueTemplate(DEFAULT_ISSUE_TEMPLATE);
+  public static final MarkdownTemplate COVERAGE_ISSUE_TEMPLATE = compileCoverageIssueTemplate(DEFAULT_COVERAGE_ISSUE_TEMPLATE);
   
   private MarkdownPrinter(){
     // DO NOTHING
   }
+
+  /**
+   * @throws IllegalArgumentException if the template uses an unknown variable
+   */
+  public static MarkdownTemplate compileIssueTemplate(String template) {
+    return MarkdownTemplate.compile(template, ISSUE_VARIABLES);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the template uses an unknown variable
+   */
+  public static MarkdownTemplate compileCoverageIssueTemplate(String template) {
+    return MarkdownTemplate.compile(template, COVERAGE_ISSUE_VARIABLES);
+  }
     
   public static String printCoverageIssueMarkdown(String stashProject, String stashRepo, String pullRequestId, String stashURL, Issue issue, IssuePathResolver issuePathResolver) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(printSeverityMarkdown(issue.severity())).append(issue.message()).append(" [[").append("file").append("]")
-        .append("(").append(stashURL).append("/projects/").append(stashProject).append("/repos/").append(stashRepo)
-                .append("/pull-requests/").append(pullRequestId).append("/diff#").append(issuePathResolver.getIssuePath(issue))
-                .append(")]");
+    return printCoverageIssueMarkdown(stashProject, stashRepo, pullRequestId, stashURL, issue, issuePathResolver, COVERAGE_ISSUE_TEMPLATE);
+  }
 
-    return sb.toString();
+  public static String printCoverageIssueMarkdown(String stashProject, String stashRepo, String pullRequestId, String stashURL, Issue issue, IssuePathResolver issuePathResolver,
+                                                  MarkdownTemplate template) {
+    String path = issuePathResolver.getIssuePath(issue);
+    return template.render(StringUtils.upperCase(issue.severity()), issue.message(), path,
+        printDiffUrl(stashProject, stashRepo, pullRequestId, stashURL, path));
+  }
+
+  /*
+   * Same as printCoverageIssueMarkdown, appended to a table row unless it does not fit.
+   */
+  private static boolean renderCoverageIssueMarkdown(StringBuilder sb, int maxLength, String stashProject, String stashRepo, String pullRequestId,
+                                                     String stashURL, Issue issue, IssuePathResolver issuePathResolver, MarkdownTemplate template) {
+    String path = issuePathResolver.getIssuePath(issue);
+    return template.renderTo(sb, maxLength, StringUtils.upperCase(issue.severity()), issue.message(), path,
+        printDiffUrl(stashProject, stashRepo, pullRequestId, stashURL, path));
+  }
+
+  private static String printDiffUrl(String stashProject, String stashRepo, String pullRequestId, String stashURL, String path) {
+    return stashURL + "/projects/" + stashProject + "/repos/" + stashRepo + "/pull-requests/" + pullRequestId + "/diff#" + path;
   }
   
   public static String printSeverityMarkdown(String severity) {
@@ -52,8 +97,11 @@ public final class MarkdownPrinter {
   }
 
   public static String printIssueNumberBySeverityMarkdown(List<Issue> report, String severity) {
+    return printIssueNumberMarkdown(severity, countIssuesBySeverity(report, severity));
+  }
+
+  private static String printIssueNumberMarkdown(String severity, long issueNumber) {
     StringBuilder sb = new StringBuilder();
-    long issueNumber = countIssuesBySeverity(report, severity);
     sb.append("| ").append(severity).append(" | ").append(issueNumber).append(" |").append(NEW_LINE);
 
     return sb.toString();
@@ -61,33 +109,115 @@ public final class MarkdownPrinter {
 
   public static String printIssueListBySeverityMarkdown(int maxLength, List<Issue> report, String sonarQubeURL, String severity) {
     StringBuilder sb = new StringBuilder();
+    printIssueListMarkdown(new MarkdownTableWriter(sb, maxLength), getUniqueRulesBySeverity(report, severity).values(),
+        sonarQubeURL, severity, ISSUE_TEMPLATE, null);
+
+    return sb.toString();
+  }
 
-    Map<String, Issue> rules = getUniqueRulesBySeverity(report, severity);
+  /*
+   * Returns false once the table is full: no more issue is rendered.
+   */
+  private static boolean printIssueListMarkdown(MarkdownTableWriter table, Collection<Issue> ruleIssues, String sonarQubeURL,
+                                                String severity, MarkdownTemplate template, IssuePathResolver issuePathResolver) {
+    if (ruleIssues.isEmpty()) {
+      return !table.isTruncated();
+    }
 
-    // applying squid:S2864 optimization
-    for (Map.Entry<String, Issue> rule : rules.entrySet()) {
-      Issue issue = rule.getValue();
-      sb.append("| ").append(printIssueMarkdown(issue, sonarQubeURL)).append(" |").append(NEW_LINE);
-      if (sb.length() > maxLength) {
-        sb.append("| ").append(MarkdownPrinter.printSeverityMarkdown(issue.severity()));
-        sb.append("The rest issues are skipped |").append(NEW_LINE);
-        break;
+    String skippedIssues = printSeverityMarkdown(severity) + SKIPPED_ISSUES;
+    for (Issue issue : ruleIssues) {
+      if (!table.addRow((sb, maxLength) -> renderIssueMarkdown(sb, maxLength, issue, sonarQubeURL, template, issuePathResolver),
+          skippedIssues)) {
+        return false;
       }
     }
 
-    return sb.toString();
+    return true;
   }
 
   public static String printIssueMarkdown(Issue issue, String sonarQubeURL) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(MarkdownPrinter.printSeverityMarkdown(issue.severity())).append(issue.message()).append(" [[").append(issue.ruleKey())
-            .append("]").append("(").append(sonarQubeURL).append("/").append(MarkdownPrinter.CODING_RULES_RULE_KEY).append(issue.ruleKey()).append(")]");
+    return printIssueMarkdown(issue, sonarQubeURL, ISSUE_TEMPLATE, null);
+  }
+
+  /**
+   * @param issuePathResolver only needed if the template shows the path
+   */
+  public static String printIssueMarkdown(Issue issue, String sonarQubeURL, MarkdownTemplate template, IssuePathResolver issuePathResolver) {
+    // the issues of the report are rendered once for the comments and the overview,
+    // unless the markdown depends on the location of each issue
+    IssueMarkdownCache cache = getMarkdownCache(issue, template);
+    if (cache != null) {
+      return cache.getIssueMarkdown(template, sonarQubeURL, issue.ruleKey(), issue.severity(), issue.message(),
+          () -> renderIssueMarkdown(issue, template,
+              cache.getRuleUrl(sonarQubeURL, issue.ruleKey(), () -> printRuleUrl(issue.ruleKey(), sonarQubeURL)), null));
+    }
+    return renderIssueMarkdown(issue, template, printRuleUrl(issue.ruleKey(), sonarQubeURL), issuePathResolver);
+  }
 
+  /*
+   * Same as printIssueMarkdown, appended to a table row unless it does not fit:
+   * the cached markdown is appended as is, any other is rendered in place.
+   */
+  private static boolean renderIssueMarkdown(StringBuilder sb, int maxLength, Issue issue, String sonarQubeURL,
+                                             MarkdownTemplate template, IssuePathResolver issuePathResolver) {
+    if (getMarkdownCache(issue, template) != null) {
+      String markdown = printIssueMarkdown(issue, sonarQubeURL, template, issuePathResolver);
+      if (sb.length() + markdown.length() > maxLength) {
+        return false;
+      }
+      sb.append(markdown);
+      return true;
+    }
+    return template.renderTo(sb, maxLength, getIssueValues(issue, printRuleUrl(issue.ruleKey(), sonarQubeURL), issuePathResolver));
+  }
+
+  private static IssueMarkdownCache getMarkdownCache(Issue issue, MarkdownTemplate template) {
+    IssueMarkdownCache cache = issue instanceof ReportIssue ? ((ReportIssue) issue).getMarkdownCache() : null;
+    return cache != null && !template.uses("path") && !template.uses("line") ? cache : null;
+  }
+
+  /**
+   * Markdown of a comment listing several issues, one item per issue. A single issue
+   * is printed as such, so its comment is the same whether the issues are grouped or not.
+   */
+  public static String printIssuesMarkdown(List<Issue> issues, String sonarQubeURL, MarkdownTemplate template, IssuePathResolver issuePathResolver) {
+    if (issues.size() == 1) {
+      return printIssueMarkdown(issues.get(0), sonarQubeURL, template, issuePathResolver);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Issue issue : issues) {
+      if (sb.length() > 0) {
+        sb.append(NEW_LINE);
+      }
+      sb.append(LIST_ITEM).append(printIssueMarkdown(issue, sonarQubeURL, template, issuePathResolver));
+    }
     return sb.toString();
   }
 
+  private static String renderIssueMarkdown(Issue issue, MarkdownTemplate template, String ruleUrl, IssuePathResolver issuePathResolver) {
+    return template.render(getIssueValues(issue, ruleUrl, issuePathResolver));
+  }
+
+  private static Object[] getIssueValues(Issue issue, String ruleUrl, IssuePathResolver issuePathResolver) {
+    String path = issuePathResolver == null ? null : issuePathResolver.getIssuePath(issue);
+    return new Object[] {StringUtils.upperCase(issue.severity()), issue.message(), issue.ruleKey(), ruleUrl,
+        path == null ? "" : path, issue.line() == null ? "" : issue.line()};
+  }
+
+  private static String printRuleUrl(RuleKey ruleKey, String sonarQubeURL) {
+    return sonarQubeURL + "/" + CODING_RULES_RULE_KEY + ruleKey;
+  }
+
   public static String printReportMarkdown(PullRequestRef pr, String stashURL, String sonarQubeURL, List<Issue> allIssues,
                                            int issueThreshold, Double projectCoverage, Double previousProjectCoverage, IssuePathResolver issuePathResolver) {
+    return printReportMarkdown(pr, stashURL, sonarQubeURL, allIssues, issueThreshold, projectCoverage, previousProjectCoverage, issuePathResolver,
+        ISSUE_TEMPLATE, COVERAGE_ISSUE_TEMPLATE);
+  }
+
+  public static String printReportMarkdown(PullRequestRef pr, String stashURL, String sonarQubeURL, List<Issue> allIssues,
+                                           int issueThreshold, Double projectCoverage, Double previousProjectCoverage, IssuePathResolver issuePathResolver,
+                                           MarkdownTemplate issueTemplate, MarkdownTemplate coverageIssueTemplate) {
     
     StringBuilder sb = new StringBuilder("## SonarQube analysis Overview");
     sb.append(NEW_LINE);
@@ -96,17 +226,10 @@ public final class MarkdownPrinter {
     String stashRepo     = pr.repository();
     int pullRequestId = pr.pullRequestId();
 
-    List<Issue> coverageIssues = new ArrayList<>();
-    List<Issue> generalIssues = new ArrayList<>();
-    for (Issue issue : allIssues) {
-      if (CoverageRule.isDecreasingLineCoverage(issue.ruleKey())) {
-        coverageIssues.add(issue);
-      } else {
-        generalIssues.add(issue);
-      }
-    }
+    IssueOverview overview = new IssueOverview(allIssues);
+    List<Issue> coverageIssues = overview.coverageIssues;
 
-    if (generalIssues.isEmpty() && coverageIssues.isEmpty()) {
+    if (allIssues.isEmpty()) {
     
       sb.append("### No new issues detected!");
       sb.append(NEW_LINE).append(NEW_LINE);
@@ -124,18 +247,18 @@ public final class MarkdownPrinter {
       sb.append("| Total New Issues | ").append(issueNumber).append(" |").append(NEW_LINE);
       sb.append("|-----------------|------|").append(NEW_LINE);
       for (String severity: orderedSeverities) {
-        sb.append(printIssueNumberBySeverityMarkdown(allIssues, severity));
+        sb.append(printIssueNumberMarkdown(severity, overview.getIssueNumber(severity)));
       }
       sb.append(NEW_LINE).append(NEW_LINE);
   
       // Issue list
       sb.append("| Issues list |").append(NEW_LINE);
       sb.append("|------------|").append(NEW_LINE);
+      MarkdownTableWriter issueTable = new MarkdownTableWriter(sb, SOFT_SUMMARY_COMMENT_MAX_LENGTH / 2);
       for (String severity: orderedSeverities) {
-        int maxLength = SOFT_SUMMARY_COMMENT_MAX_LENGTH / 2 - sb.length();
-        sb.append(printIssueListBySeverityMarkdown(maxLength, generalIssues, sonarQubeURL, severity));
-        if (sb.length() > SOFT_SUMMARY_COMMENT_MAX_LENGTH / 2) {
-        	break;
+        if (!printIssueListMarkdown(issueTable, overview.getRuleIssues(severity), sonarQubeURL, severity, issueTemplate, issuePathResolver)) {
+          LOGGER.debug("Overview comment is too big, the rest of the issues are skipped");
+          break;
         }
       }
       sb.append(NEW_LINE).append(NEW_LINE);
@@ -143,21 +266,26 @@ public final class MarkdownPrinter {
     
     // Code coverage
     if (!coverageIssues.isEmpty()) {
-      int maxLength = SOFT_SUMMARY_COMMENT_MAX_LENGTH - sb.length();
-      sb.append(printCoverageReportMarkdown(maxLength, stashProject, stashRepo, pullRequestId, coverageIssues, stashURL, projectCoverage, previousProjectCoverage, issuePathResolver));
+      printCoverageReportMarkdown(sb, SOFT_SUMMARY_COMMENT_MAX_LENGTH, stashProject, stashRepo, pullRequestId, coverageIssues, stashURL, projectCoverage, previousProjectCoverage, issuePathResolver,
+          coverageIssueTemplate);
     }
 
-    if (sb.length() > HARD_SUMMARY_COMMENT_MAX_LENGTH) {
-      LOGGER.debug("Overview comment is too big, trimming");
-      sb.setLength(HARD_SUMMARY_COMMENT_MAX_LENGTH);
-    }
-    
     return sb.toString();
   }
   
   public static String printCoverageReportMarkdown(int maxLength, String stashProject, String stashRepo, int pullRequestId, List<Issue> coverageReport, String stashURL,
                                                    Double projectCoverage, Double previousProjectCoverage, IssuePathResolver issuePathResolver) {
-    StringBuilder sb = new StringBuilder("| Line Coverage: ");
+    StringBuilder sb = new StringBuilder();
+    printCoverageReportMarkdown(sb, maxLength, stashProject, stashRepo, pullRequestId, coverageReport, stashURL, projectCoverage,
+        previousProjectCoverage, issuePathResolver, COVERAGE_ISSUE_TEMPLATE);
+
+    return sb.toString();
+  }
+
+  private static void printCoverageReportMarkdown(StringBuilder sb, int maxLength, String stashProject, String stashRepo, int pullRequestId, List<Issue> coverageReport, String stashURL,
+                                                  Double projectCoverage, Double previousProjectCoverage, IssuePathResolver issuePathResolver,
+                                                  MarkdownTemplate template) {
+    sb.append("| Line Coverage: ");
 
     double diffProjectCoverage = projectCoverage - previousProjectCoverage;
     
@@ -170,15 +298,55 @@ public final class MarkdownPrinter {
             .append(NEW_LINE);
     sb.append("|---------------|").append(NEW_LINE);
     
+    MarkdownTableWriter coverageTable = new MarkdownTableWriter(sb, maxLength);
+    String pullRequest = String.valueOf(pullRequestId);
     for (Issue issue : coverageReport) {
-      sb.append("| ").append(MarkdownPrinter.printCoverageIssueMarkdown(stashProject, stashRepo, String.valueOf(pullRequestId), stashURL, issue, issuePathResolver)).append(" |").append(NEW_LINE);
-      if (sb.length() > maxLength) {
-        sb.append("| The rest issues are skipped |");
+      if (!coverageTable.addRow((row, rowMaxLength) -> renderCoverageIssueMarkdown(row, rowMaxLength, stashProject, stashRepo, pullRequest, stashURL, issue,
+          issuePathResolver, template), SKIPPED_ISSUES)) {
+        LOGGER.debug("Overview comment is too big, the rest of the coverage issues are skipped");
         break;
       }
     }
-    
-    return sb.toString();
+  }
+
+  /*
+   * Everything the overview needs from the issues, gathered in one pass: the
+   * number of issues and the first issue of each rule by severity, and the
+   * coverage issues.
+   */
+  private static final class IssueOverview {
+    private final long[] issueNumbers = new long[Severity.ALL.size()];
+    private final List<Map<RuleKey, Issue>> ruleIssues = new ArrayList<>(Severity.ALL.size());
+    private final List<Issue> coverageIssues = new ArrayList<>();
+
+    IssueOverview(List<Issue> issues) {
+      for (int i = 0; i < Severity.ALL.size(); i++) {
+        ruleIssues.add(new LinkedHashMap<>());
+      }
+
+      for (Issue issue : issues) {
+        boolean coverageIssue = CoverageRule.isDecreasingLineCoverage(issue.ruleKey());
+        if (coverageIssue) {
+          coverageIssues.add(issue);
+        }
+
+        int severity = Severity.ALL.indexOf(issue.severity());
+        if (severity >= 0) {
+          issueNumbers[severity]++;
+          if (!coverageIssue) {
+            ruleIssues.get(severity).putIfAbsent(issue.ruleKey(), issue);
+          }
+        }
+      }
+    }
+
+    long getIssueNumber(String severity) {
+      return issueNumbers[Severity.ALL.indexOf(severity)];
+    }
+
+    Collection<Issue> getRuleIssues(String severity) {
+      return ruleIssues.get(Severity.ALL.indexOf(severity)).values();
+    }
   }
 
 }
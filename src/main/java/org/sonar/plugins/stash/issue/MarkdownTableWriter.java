@@ -0,0 +1,95 @@
+package org.sonar.plugins.stash.issue;
+
+/**
+ * Writes the rows of a one-column markdown table as long as the markdown
+ * stays under a maximum length. The first row which does not fit is replaced
+ * by a summary row and the table is closed, so the callers can stop rendering
+ * rows which would be dropped anyway.
+ *
+ * The cells are rendered right into the markdown, bounded by the room left:
+ * a row which does not fit is rendered up to that room only, then removed.
+ */
+final class MarkdownTableWriter {
+
+    private static final String ROW_START = "| ";
+    private static final String ROW_END = " |\n";
+    private static final int ROW_MARKUP_LENGTH = ROW_START.length() + ROW_END.length();
+
+    private final StringBuilder sb;
+    private final int maxLength;
+    private boolean truncated;
+
+    /**
+     * @param sb
+     *            markdown the rows are appended to
+     * @param maxLength
+     *            maximum length of the whole markdown, rows included
+     */
+    MarkdownTableWriter(StringBuilder sb, int maxLength) {
+        this.sb = sb;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Append the row if there is still room for it and for the summary row,
+     * otherwise append the summary row and close the table.
+     *
+     * @return false once the table is closed
+     */
+    boolean addRow(String cell, String summaryCell) {
+        return addRow((row, rowMaxLength) -> {
+            if (row.length() + cell.length() > rowMaxLength) {
+                return false;
+            }
+            row.append(cell);
+            return true;
+        }, summaryCell);
+    }
+
+    /**
+     * Render the cell into the row if there is still room for it and for the
+     * summary row, otherwise remove it, append the summary row and close the
+     * table.
+     *
+     * @return false once the table is closed
+     */
+    boolean addRow(CellRenderer cell, String summaryCell) {
+        if (truncated) {
+            return false;
+        }
+
+        int rowStart = sb.length();
+        sb.append(ROW_START);
+        // the end of the row and the summary row must fit too
+        if (!cell.renderTo(sb, maxLength - ROW_END.length() - summaryCell.length() - ROW_MARKUP_LENGTH)) {
+            sb.setLength(rowStart);
+            appendRow(summaryCell);
+            truncated = true;
+            return false;
+        }
+
+        sb.append(ROW_END);
+        return true;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    private void appendRow(String cell) {
+        sb.append(ROW_START).append(cell).append(ROW_END);
+    }
+
+    @FunctionalInterface
+    interface CellRenderer {
+
+        /**
+         * Append the cell to the markdown unless it would get longer than the
+         * maximum length.
+         *
+         * @return false if the cell does not fit, the table then removes
+         *         whatever was appended
+         */
+        boolean renderTo(StringBuilder sb, int maxLength);
+    }
+}
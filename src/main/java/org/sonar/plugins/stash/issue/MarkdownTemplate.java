@@ -0,0 +1,129 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Markdown with ${variable} placeholders. The template is parsed once into
+ * literal and variable segments, rendering only appends them to a buffer
+ * reused by each thread.
+ */
+public final class MarkdownTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+    private static final String PLACEHOLDER_END = "}";
+
+    // large buffers are not kept, a few comments are much bigger than the others
+    private static final int MAX_KEPT_BUFFER_CAPACITY = 16 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+    private final String template;
+    private final List<String> variableNames;
+    // literals[i] comes before variables[i], the last literal ends the template
+    private final String[] literals;
+    private final int[] variables;
+
+    private MarkdownTemplate(String template, List<String> variableNames, String[] literals, int[] variables) {
+        this.template = template;
+        this.variableNames = variableNames;
+        this.literals = literals;
+        this.variables = variables;
+    }
+
+    /**
+     * @param variableNames
+     *            variables the template may use, the values are given in the
+     *            same order to {@link #render(Object...)}
+     * @throws IllegalArgumentException
+     *             if the template uses an unknown variable
+     */
+    public static MarkdownTemplate compile(String template, List<String> variableNames) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> variables = new ArrayList<>();
+
+        int from = 0;
+        int start = template.indexOf(PLACEHOLDER_START);
+        while (start >= 0) {
+            int end = template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unclosed placeholder in template: " + template);
+            }
+
+            String name = template.substring(start + PLACEHOLDER_START.length(), end);
+            int variable = variableNames.indexOf(name);
+            if (variable < 0) {
+                throw new IllegalArgumentException(
+                        "Unknown variable " + name + " in template: " + template + ", expected one of " + variableNames);
+            }
+
+            literals.add(template.substring(from, start));
+            variables.add(variable);
+            from = end + PLACEHOLDER_END.length();
+            start = template.indexOf(PLACEHOLDER_START, from);
+        }
+        literals.add(template.substring(from));
+
+        return new MarkdownTemplate(template, variableNames, literals.toArray(new String[literals.size()]),
+                variables.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * @param values
+     *            value of each variable, in the order given at compilation
+     */
+    public String render(Object... values) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        renderTo(sb, Integer.MAX_VALUE, values);
+
+        String result = sb.toString();
+        if (sb.capacity() > MAX_KEPT_BUFFER_CAPACITY) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Append the rendered markdown to a buffer, segment by segment, as long as
+     * the buffer stays under a maximum length: the segment which does not fit
+     * is not appended, nor are the following ones.
+     *
+     * @param maxLength
+     *            maximum length of the whole buffer
+     * @param values
+     *            value of each variable, in the order given at compilation
+     * @return false if the markdown did not fit, the buffer then ends with a
+     *         part of it only
+     */
+    public boolean renderTo(StringBuilder sb, int maxLength, Object... values) {
+        for (int i = 0; i < variables.length; i++) {
+            if (!append(sb, maxLength, literals[i]) || !append(sb, maxLength, String.valueOf(values[variables[i]]))) {
+                return false;
+            }
+        }
+        return append(sb, maxLength, literals[variables.length]);
+    }
+
+    private static boolean append(StringBuilder sb, int maxLength, String segment) {
+        if (sb.length() + segment.length() > maxLength) {
+            return false;
+        }
+        sb.append(segment);
+        return true;
+    }
+
+    public boolean uses(String variableName) {
+        int variable = variableNames.indexOf(variableName);
+        for (int used : variables) {
+            if (used == variable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
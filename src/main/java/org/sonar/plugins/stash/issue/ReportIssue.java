@@ -0,0 +1,173 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.IssueComment;
+import org.sonar.api.rule.RuleKey;
+
+/**
+ * Issue of the report: only keeps what is posted to Stash, so the SonarQube
+ * issues (attributes, comments, action plan...) can be released once the
+ * report is extracted.
+ *
+ * The path, rule key, severity and markdown are shared between the issues of a
+ * report, the other fields are not kept and return null.
+ */
+public final class ReportIssue implements Issue {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final String componentKey;
+    private final String path;
+    private final RuleKey ruleKey;
+    private final String severity;
+    private final String message;
+    private final Integer line;
+
+    private final transient IssueMarkdownCache markdownCache;
+
+    public ReportIssue(String key, String componentKey, String path, RuleKey ruleKey, String severity, String message,
+            Integer line) {
+        this(key, componentKey, path, ruleKey, severity, message, line, new IssueMarkdownCache());
+    }
+
+    public ReportIssue(String key, String componentKey, String path, RuleKey ruleKey, String severity, String message,
+            Integer line, IssueMarkdownCache markdownCache) {
+        this.key = key;
+        this.componentKey = componentKey;
+        this.path = path;
+        this.ruleKey = ruleKey;
+        this.severity = severity;
+        this.message = message;
+        this.line = line;
+        this.markdownCache = markdownCache;
+    }
+
+    /**
+     * Path of the file of the issue, as used by the Stash diff.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Markdown of the issues of the report.
+     */
+    public IssueMarkdownCache getMarkdownCache() {
+        return markdownCache;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public String componentKey() {
+        return componentKey;
+    }
+
+    @Override
+    public RuleKey ruleKey() {
+        return ruleKey;
+    }
+
+    @Override
+    public String severity() {
+        return severity;
+    }
+
+    @Override
+    public String message() {
+        return message;
+    }
+
+    @Override
+    public Integer line() {
+        return line;
+    }
+
+    @Override
+    public Double effortToFix() {
+        return null;
+    }
+
+    @Override
+    public String status() {
+        return Issue.STATUS_OPEN;
+    }
+
+    @Override
+    public String resolution() {
+        return null;
+    }
+
+    @Override
+    public String reporter() {
+        return null;
+    }
+
+    @Override
+    public String assignee() {
+        return null;
+    }
+
+    @Override
+    public Date creationDate() {
+        return null;
+    }
+
+    @Override
+    public Date updateDate() {
+        return null;
+    }
+
+    @Override
+    public Date closeDate() {
+        return null;
+    }
+
+    @Override
+    public String attribute(String attributeKey) {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> attributes() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String authorLogin() {
+        return null;
+    }
+
+    @Override
+    public String actionPlanKey() {
+        return null;
+    }
+
+    @Override
+    public List<IssueComment> comments() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Only the new issues are reported.
+     */
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ReportIssue [key=" + key + ", path=" + path + ", line=" + line + ", ruleKey=" + ruleKey + ", severity="
+                + severity + "]";
+    }
+}
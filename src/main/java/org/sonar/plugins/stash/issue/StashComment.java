@@ -3,14 +3,19 @@ package org.sonar.plugins.stash.issue;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+
 public class StashComment {
 
+    private static final String FILE_TYPE_SOURCE = "FROM";
+
     private final long id;
     private final String message;
     private final StashUser author;
     private final long version;
     private long line;
     private String path;
+    private String fileType;
     private List<StashTask> tasks;
 
     public StashComment(long id, String message, String path, Long line, StashUser author, long version) {
@@ -42,6 +47,18 @@ public class StashComment {
         this.path = path;
     }
 
+    /**
+     * Side of the diff the comment is anchored to: "FROM" when the line is a
+     * source line, "TO" (or null) when it is a destination line.
+     */
+    public void setFileType(String fileType) {
+        this.fileType = fileType;
+    }
+
+    public boolean isAnchoredToSource() {
+        return StringUtils.equals(FILE_TYPE_SOURCE, fileType);
+    }
+
     public String getMessage() {
         return message;
     }
@@ -47,6 +47,10 @@ public class StashCommentReport {
     public StashCommentReport applyDiffReport(StashDiffReport diffReport) {
         for (StashComment comment : comments) {
             StashDiff diff = diffReport.getDiffByComment(comment.getId());
+            if ((diff == null) && comment.isAnchoredToSource() && (comment.getLine() != 0)) {
+                // the diff has been fetched without its comments
+                diff = diffReport.getContextDiffBySource(comment.getPath(), comment.getLine());
+            }
             if ((diff != null) && diff.isTypeOfContext()) {
 
                 // By default comment line, with type == CONTEXT, is set to FROM
@@ -2,6 +2,7 @@ package org.sonar.plugins.stash.issue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import org.apache.commons.lang3.StringUtils;
 import org.sonar.plugins.stash.StashPlugin;
@@ -15,11 +16,15 @@ public class StashDiff {
     private final List<StashComment> comments;
 
     public StashDiff(String type, String path, long source, long destination) {
+        this(type, path, source, destination, new ArrayList<>());
+    }
+
+    StashDiff(String type, String path, long source, long destination, List<StashComment> comments) {
         this.type = type;
         this.path = path;
         this.source = source;
         this.destination = destination;
-        this.comments = new ArrayList<>();
+        this.comments = comments;
     }
 
     public void addComment(StashComment comment) {
@@ -54,6 +59,23 @@ public class StashDiff {
         return comments.stream().anyMatch(c -> c.getId() == commentId);
     }
 
+    @Override
+    public boolean equals(Object object) {
+        boolean result = false;
+        if (object instanceof StashDiff) {
+            StashDiff stashDiff = (StashDiff) object;
+            result = StringUtils.equals(type, stashDiff.type) && StringUtils.equals(path, stashDiff.path)
+                    && source == stashDiff.source && destination == stashDiff.destination;
+        }
+
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, path, source, destination);
+    }
+
     @Override
     public String toString() {
         return "StashDiff [type=" + type + ", path=" + path + ", source=" + source + ", destination=" + destination
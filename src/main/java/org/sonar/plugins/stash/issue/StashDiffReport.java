@@ -1,64 +1,187 @@
 package org.sonar.plugins.stash.issue;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.plugins.stash.StashPlugin;
 
 /**
  * This class is a representation of the Stash Diff view.
- * 
+ *
  * Purpose is to check if a SonarQube issue belongs to the Stash diff view
  * before posting. Indeed, Stash Diff view displays only comments which belong
  * to this view.
  *
+ * To keep huge pull-requests affordable, the lines of a file are not kept as
+ * StashDiff objects but as ranges of consecutive lines of the same type, in
+ * primitive arrays, looked up by binary search. Comments are kept aside for
+ * the lines which have some. StashDiff objects are only created on demand.
+ *
+ * When a memory budget is set, the ranges of the files are moved to a
+ * temporary memory-mapped file once the budget, which also counts the
+ * comments, is exceeded, and read from there. The file is deleted as soon as
+ * it is mapped, the mapping is released with the report.
+ *
+ * Once filled, the report may be looked up from several threads.
  */
 public class StashDiffReport {
 
-    private List<StashDiff> diffs;
+    private static final Logger LOGGER = LoggerFactory.getLogger(StashDiffReport.class);
+
+    // destination, source, length, offset and kind of a range
+    private static final int RANGE_BYTES = 4 * 4 + 1;
+
+    // rough sizes of a commented line in the comment table, of a comment and
+    // of a task, without their text
+    private static final int COMMENTED_LINE_BYTES = 64;
+    private static final int COMMENT_BYTES = 96;
+    private static final int TASK_BYTES = 64;
+
+    private final Map<String, FileDiff> files;
+    private final List<String> types;
+
+    private long memoryBudget;
+    private long heapBytes;
+    private boolean spilled;
 
     public StashDiffReport() {
-        this.diffs = new ArrayList<>();
+        files = new LinkedHashMap<>();
+        types = new ArrayList<>();
+    }
+
+    private StashDiffReport(StashDiffReport report, Set<String> paths) {
+        files = new LinkedHashMap<>();
+        types = report.types;
+        for (Map.Entry<String, FileDiff> file : report.files.entrySet()) {
+            if (paths.contains(file.getKey())) {
+                files.put(file.getKey(), file.getValue());
+            }
+        }
+        spilled = report.spilled;
+    }
+
+    /**
+     * A view of the given files of the report, sharing their lines and
+     * comments with it. The view is only meant to be looked up.
+     *
+     * @param paths
+     *            files to keep in the view
+     */
+    public StashDiffReport getView(Set<String> paths) {
+        return new StashDiffReport(this, paths);
     }
 
     public List<StashDiff> getDiffs() {
-        return diffs;
+        List<StashDiff> result = new ArrayList<>();
+        for (FileDiff file : files.values()) {
+            file.addDiffsTo(result);
+        }
+        return result;
     }
 
+    /**
+     * Limit the memory used by the lines and comments of the report: above the
+     * budget, the lines of the files are moved to a temporary file.
+     *
+     * @param bytes
+     *            memory budget, 0 for no limit
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        checkMemoryBudget(null);
+    }
+
+    /**
+     * Memory used by the comments and by the lines of the files not moved to
+     * disk.
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Add a line of the diff view, with the comments added to it so far.
+     */
     public void add(StashDiff diff) {
-        diffs.add(diff);
+        add(diff.getType(), diff.getPath(), diff.getSource(), diff.getDestination(), diff.getComments());
+    }
+
+    /**
+     * Add a line of the diff view with its comments.
+     */
+    public void add(String type, String path, long source, long destination, List<StashComment> comments) {
+        getFile(path).add(getTypeIndex(type), source, destination, comments.isEmpty() ? null : comments);
+    }
+
+    /**
+     * Add a line of the diff view without any comment.
+     */
+    public void add(String type, String path, long source, long destination) {
+        getFile(path).add(getTypeIndex(type), source, destination, null);
     }
 
     public void add(StashDiffReport report) {
-        for (StashDiff diff : report.getDiffs()) {
-            diffs.add(diff);
+        for (FileDiff other : report.files.values()) {
+            FileDiff file = getFile(other.path);
+            for (int range = 0; range < other.size; range++) {
+                int type = getTypeIndex(other.getType(range));
+                for (int i = 0; i < other.getLength(range); i++) {
+                    file.add(type, other.getSource(range, i), (long) other.getDestination(range) + i,
+                            other.getLineComments(other.getOffset(range) + i));
+                }
+            }
         }
     }
 
     public List<StashDiff> getDiff(String path) {
-        return diffs.stream().filter(p -> p.getPath().equals(path)).collect(Collectors.toList());
+        FileDiff file = files.get(path);
+        if (file == null) {
+            return Collections.emptyList();
+        }
+
+        List<StashDiff> result = new ArrayList<>();
+        file.addDiffsTo(result);
+        return result;
     }
 
     public boolean hasPath(String path) {
-        return !getDiff(path).isEmpty();
+        return files.containsKey(path);
     }
 
     public String getType(String path, long destination) {
-        for (StashDiff diff : getDiff(path)) {
-            // Line 0 never belongs to Stash Diff view.
-            // It is a global comment with a type set to CONTEXT.
-            if (StringUtils.equals(diff.getPath(), path) && destination == 0) {
-                return StashPlugin.CONTEXT_ISSUE_TYPE;
-            }
+        FileDiff file = files.get(path);
+        if (file == null) {
+            return null;
+        }
 
-            if (StringUtils.equals(diff.getPath(), path) && diff.getDestination() == destination) {
-                return diff.getType();
-            }
+        // Line 0 never belongs to Stash Diff view.
+        // It is a global comment with a type set to CONTEXT.
+        if (destination == 0) {
+            return StashPlugin.CONTEXT_ISSUE_TYPE;
         }
 
-        return null;
+        int range = file.find(destination);
+        return range < 0 ? null : file.getType(range);
     }
 
     /**
@@ -67,30 +190,55 @@ public class StashDiffReport {
      * diff.
      */
     public long getLine(String path, long destination) {
-        long result = 0;
-        for (StashDiff diff : diffs) {
-            if (StringUtils.equals(diff.getPath(), path) && (diff.getDestination() == destination)) {
+        FileDiff file = files.get(path);
+        if (file == null) {
+            return 0;
+        }
 
-                if (diff.isTypeOfContext()) {
-                    result = diff.getSource();
-                } else {
-                    result = diff.getDestination();
-                }
-                break;
+        int range = file.find(destination);
+        if (range < 0) {
+            return 0;
+        }
+
+        if (StringUtils.equals(StashPlugin.CONTEXT_ISSUE_TYPE, file.getType(range))) {
+            return file.getSource(range, (int) (destination - file.getDestination(range)));
+        }
+        return destination;
+    }
+
+    /**
+     * Get the context line of a file by its source line.
+     */
+    public StashDiff getContextDiffBySource(String path, long source) {
+        FileDiff file = files.get(path);
+        if (file == null) {
+            return null;
+        }
+
+        for (int range = 0; range < file.size; range++) {
+            if (!StringUtils.equals(StashPlugin.CONTEXT_ISSUE_TYPE, file.getType(range))) {
+                continue;
+            }
+
+            long index = source - file.getSource(range, 0);
+            if (index == 0 || (file.getSourceStep(range) == 1 && index > 0 && index < file.getLength(range))) {
+                return file.getDiff(range, (int) index);
             }
         }
-        return result;
+        return null;
     }
 
     public StashDiff getDiffByComment(long commentId) {
-        StashDiff result = null;
-        for (StashDiff diff : diffs) {
-            if (diff.containsComment(commentId)) {
-                result = diff;
-                break;
+        for (FileDiff file : files.values()) {
+            for (Map.Entry<Integer, List<StashComment>> line : file.getCommentedLines()) {
+                for (StashComment comment : line.getValue()) {
+                    if (comment.getId() == commentId) {
+                        return file.getDiff(line.getKey());
+                    }
+                }
             }
         }
-        return result;
+        return null;
     }
 
     /**
@@ -98,16 +246,366 @@ public class StashDiffReport {
      */
     public List<StashComment> getComments() {
         List<StashComment> result = new ArrayList<>();
+        Set<Long> commentIds = new HashSet<>();
 
-        for (StashDiff diff : this.diffs) {
-            List<StashComment> comments = diff.getComments();
-
-            for (StashComment comment : comments) {
-                if (!result.contains(comment)) {
-                    result.add(comment);
+        for (FileDiff file : files.values()) {
+            for (Map.Entry<Integer, List<StashComment>> line : file.getCommentedLines()) {
+                for (StashComment comment : line.getValue()) {
+                    if (commentIds.add(comment.getId())) {
+                        result.add(comment);
+                    }
                 }
             }
         }
         return result;
     }
+
+    private FileDiff getFile(String path) {
+        FileDiff file = files.get(path);
+        if (file == null) {
+            // the previous files are complete, a good time to move them
+            checkMemoryBudget(null);
+            file = new FileDiff(path);
+            files.put(path, file);
+        }
+        return file;
+    }
+
+    private int getTypeIndex(String type) {
+        int index = types.indexOf(type);
+        if (index < 0) {
+            types.add(type);
+            index = types.size() - 1;
+        }
+        return index;
+    }
+
+    /*
+     * Move the files kept in memory, but the one being filled, to disk when
+     * the budget is exceeded.
+     */
+    private void checkMemoryBudget(FileDiff current) {
+        if (memoryBudget <= 0 || heapBytes <= memoryBudget) {
+            return;
+        }
+
+        List<FileDiff> spilledFiles = new ArrayList<>();
+        long bytes = 0;
+        for (FileDiff file : files.values()) {
+            if (file != current && !file.isSpilled() && file.size > 0) {
+                spilledFiles.add(file);
+                bytes += (long) file.size * RANGE_BYTES;
+            }
+        }
+
+        if (!spilledFiles.isEmpty()) {
+            spill(spilledFiles, bytes);
+        }
+    }
+
+    /*
+     * Each spill gets its own file, deleted once mapped: the mapping stays
+     * valid without it and is released when the report is collected.
+     */
+    private void spill(List<FileDiff> spilledFiles, long bytes) {
+        try {
+            Path spillFile = Files.createTempFile("stash-diff", ".bin");
+            try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                for (FileDiff file : spilledFiles) {
+                    file.spill(buffer);
+                }
+            } finally {
+                deleteSpillFile(spillFile);
+            }
+            spilled = true;
+
+            LOGGER.debug("Stash diff report above {} bytes, {} files moved to disk", memoryBudget, spilledFiles.size());
+        } catch (IOException e) {
+            // keep going in memory
+            LOGGER.warn("Unable to move the Stash diff report to disk: {}", e.getMessage());
+            LOGGER.debug("Exception", e);
+            memoryBudget = 0;
+        }
+    }
+
+    private static void deleteSpillFile(Path spillFile) {
+        try {
+            Files.delete(spillFile);
+        } catch (IOException e) {
+            // a mapped file cannot be deleted on some systems
+            LOGGER.debug("Unable to delete {} yet: {}", spillFile, e.getMessage());
+            spillFile.toFile().deleteOnExit();
+        }
+    }
+
+    private static long getBytes(List<StashComment> lineComments) {
+        long bytes = COMMENTED_LINE_BYTES;
+        for (StashComment comment : lineComments) {
+            bytes += COMMENT_BYTES + 2L * StringUtils.length(comment.getMessage());
+            for (StashTask task : comment.getTasks()) {
+                bytes += TASK_BYTES + 2L * StringUtils.length(task.getText());
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     * Lines of a file, in the order they were added. A range covers
+     * consecutive destination lines of the same type whose source lines are
+     * either constant or consecutive too. The lines are also numbered in the
+     * order they were added, to attach the comments to them.
+     *
+     * Once spilled, the ranges are read from a slice of the temporary file,
+     * and loaded back in memory if a line is added to the file.
+     */
+    private final class FileDiff {
+        private static final int INITIAL_CAPACITY = 4;
+
+        private final String path;
+
+        private int size;
+        private int lineCount;
+        private int[] destinations;
+        private int[] sources;
+        private int[] lengths;
+        // number of the first line of each range
+        private int[] offsets;
+        // type index << 1 | source step
+        private byte[] kinds;
+
+        // ranges on disk, null when they are in memory
+        private ByteBuffer ranges;
+
+        // ranges by destination, only needed when they were not added in order
+        private boolean ordered = true;
+        private volatile int[] byDestination;
+
+        // comments by line number, only for the lines which have some
+        private TreeMap<Integer, List<StashComment>> comments;
+
+        FileDiff(String path) {
+            this.path = path;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        void add(int type, long source, long destination, List<StashComment> lineComments) {
+            int line = lineCount++;
+            if (lineComments != null) {
+                if (comments == null) {
+                    comments = new TreeMap<>();
+                }
+                comments.put(line, lineComments);
+                heapBytes += getBytes(lineComments);
+            }
+
+            if (isSpilled()) {
+                load();
+            }
+
+            int sourceLine = Math.toIntExact(source);
+            int destinationLine = Math.toIntExact(destination);
+            if (size > 0 && extendLastRange(type, sourceLine, destinationLine)) {
+                return;
+            }
+
+            if (size == destinations.length) {
+                allocate(size * 2);
+                checkMemoryBudget(this);
+            }
+
+            if (size > 0 && destinationLine < destinations[size - 1] + lengths[size - 1]) {
+                ordered = false;
+            }
+            byDestination = null;
+
+            destinations[size] = destinationLine;
+            sources[size] = sourceLine;
+            lengths[size] = 1;
+            offsets[size] = line;
+            kinds[size] = (byte) (type << 1);
+            size++;
+        }
+
+        private boolean extendLastRange(int type, int source, int destination) {
+            int last = size - 1;
+            int length = lengths[last];
+            if ((kinds[last] >> 1) != type || destinations[last] + length != destination) {
+                return false;
+            }
+
+            int step = source - getSource(last, length - 1);
+            if (length == 1 && (step == 0 || step == 1)) {
+                kinds[last] = (byte) (type << 1 | step);
+            } else if (length == 1 || step != getSourceStep(last)) {
+                return false;
+            }
+
+            lengths[last]++;
+            return true;
+        }
+
+        private void allocate(int capacity) {
+            int previous = destinations == null ? 0 : destinations.length;
+            destinations = destinations == null ? new int[capacity] : Arrays.copyOf(destinations, capacity);
+            sources = sources == null ? new int[capacity] : Arrays.copyOf(sources, capacity);
+            lengths = lengths == null ? new int[capacity] : Arrays.copyOf(lengths, capacity);
+            offsets = offsets == null ? new int[capacity] : Arrays.copyOf(offsets, capacity);
+            kinds = kinds == null ? new byte[capacity] : Arrays.copyOf(kinds, capacity);
+            heapBytes += (long) (capacity - previous) * RANGE_BYTES;
+        }
+
+        boolean isSpilled() {
+            return ranges != null;
+        }
+
+        /*
+         * Write the ranges at the position of the buffer, and read them from
+         * there from now on.
+         */
+        void spill(ByteBuffer buffer) {
+            int start = buffer.position();
+            for (int range = 0; range < size; range++) {
+                buffer.putInt(destinations[range]);
+                buffer.putInt(sources[range]);
+                buffer.putInt(lengths[range]);
+                buffer.putInt(offsets[range]);
+                buffer.put(kinds[range]);
+            }
+
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(start);
+            slice.limit(buffer.position());
+            ranges = slice.slice();
+
+            heapBytes -= (long) destinations.length * RANGE_BYTES;
+            destinations = null;
+            sources = null;
+            lengths = null;
+            offsets = null;
+            kinds = null;
+        }
+
+        private void load() {
+            ByteBuffer spilled = ranges;
+            allocate(Math.max(INITIAL_CAPACITY, size * 2));
+            for (int range = 0; range < size; range++) {
+                destinations[range] = spilled.getInt(range * RANGE_BYTES);
+                sources[range] = spilled.getInt(range * RANGE_BYTES + 4);
+                lengths[range] = spilled.getInt(range * RANGE_BYTES + 8);
+                offsets[range] = spilled.getInt(range * RANGE_BYTES + 12);
+                kinds[range] = spilled.get(range * RANGE_BYTES + 16);
+            }
+            ranges = null;
+        }
+
+        int getDestination(int range) {
+            return ranges == null ? destinations[range] : ranges.getInt(range * RANGE_BYTES);
+        }
+
+        int getLength(int range) {
+            return ranges == null ? lengths[range] : ranges.getInt(range * RANGE_BYTES + 8);
+        }
+
+        int getOffset(int range) {
+            return ranges == null ? offsets[range] : ranges.getInt(range * RANGE_BYTES + 12);
+        }
+
+        private byte getKind(int range) {
+            return ranges == null ? kinds[range] : ranges.get(range * RANGE_BYTES + 16);
+        }
+
+        String getType(int range) {
+            return types.get(getKind(range) >> 1);
+        }
+
+        int getSourceStep(int range) {
+            return getKind(range) & 1;
+        }
+
+        int getSource(int range, int index) {
+            int source = ranges == null ? sources[range] : ranges.getInt(range * RANGE_BYTES + 4);
+            return source + index * getSourceStep(range);
+        }
+
+        List<StashComment> getLineComments(int line) {
+            return comments == null ? null : comments.get(line);
+        }
+
+        Iterable<Map.Entry<Integer, List<StashComment>>> getCommentedLines() {
+            return comments == null ? Collections.<Map.Entry<Integer, List<StashComment>>>emptyList() : comments.entrySet();
+        }
+
+        /*
+         * Index of the range containing the destination line, -1 if none.
+         */
+        int find(long destination) {
+            int[] order = getRangesByDestination();
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int range = order == null ? middle : order[middle];
+                int start = getDestination(range);
+                if (destination < start) {
+                    high = middle - 1;
+                } else if (destination >= (long) start + getLength(range)) {
+                    low = middle + 1;
+                } else {
+                    return range;
+                }
+            }
+            return -1;
+        }
+
+        private int[] getRangesByDestination() {
+            if (ordered) {
+                return null;
+            }
+
+            int[] result = byDestination;
+            if (result == null) {
+                long[] keys = new long[size];
+                for (int range = 0; range < size; range++) {
+                    keys[range] = ((long) getDestination(range) << 32) | range;
+                }
+                Arrays.sort(keys);
+
+                result = new int[size];
+                for (int i = 0; i < size; i++) {
+                    result[i] = (int) keys[i];
+                }
+                byDestination = result;
+            }
+            return result;
+        }
+
+        StashDiff getDiff(int line) {
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (getOffset(middle) <= line) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return getDiff(low, line - getOffset(low));
+        }
+
+        StashDiff getDiff(int range, int index) {
+            List<StashComment> lineComments = getLineComments(getOffset(range) + index);
+            return new StashDiff(getType(range), path, getSource(range, index), (long) getDestination(range) + index,
+                    lineComments == null ? new ArrayList<>() : lineComments);
+        }
+
+        void addDiffsTo(List<StashDiff> result) {
+            for (int range = 0; range < size; range++) {
+                for (int index = 0; index < getLength(range); index++) {
+                    result.add(getDiff(range, index));
+                }
+            }
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package org.sonar.plugins.stash.issue.collector;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -8,9 +10,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.ProjectIssues;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
 import org.sonar.plugins.stash.IssuePathResolver;
+import org.sonar.plugins.stash.issue.IssueMarkdownCache;
+import org.sonar.plugins.stash.issue.ReportIssue;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 public final class SonarQubeCollector {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SonarQubeCollector.class);
@@ -26,17 +35,77 @@ public final class SonarQubeCollector {
      */
     public static List<Issue> extractIssueReport(ProjectIssues projectIssues, StashDiffReport diffReport,
             IssuePathResolver issuePathResolver) {
+        return extractIssueReport(projectIssues, diffReport, issuePathResolver, null);
+    }
+
+    /**
+     * Create issue report according to issue list generated during SonarQube
+     * analysis.
+     *
+     * The issues are projected to {@link ReportIssue} while they are read, so
+     * the SonarQube issues are not kept by the report.
+     *
+     * @param issuesOnDiffLines
+     *            also given the issues of the report on a line of the diff
+     *            view, as they are read, null if not needed
+     */
+    public static List<Issue> extractIssueReport(ProjectIssues projectIssues, StashDiffReport diffReport,
+            IssuePathResolver issuePathResolver, Consumer<Issue> issuesOnDiffLines) {
+        Interner<String> strings = Interners.newStrongInterner();
+        Severity.ALL.forEach(strings::intern);
+        Interner<RuleKey> ruleKeys = Interners.newStrongInterner();
+        IssueMarkdownCache markdownCache = new IssueMarkdownCache();
+
         return StreamSupport.stream(projectIssues.issues().spliterator(), false)
-                .filter(issue -> shouldIncludeIssue(issue, issuePathResolver, diffReport)).collect(Collectors.toList());
+                .map(issue -> {
+                    String path = getIncludedIssuePath(issue, issuePathResolver, diffReport);
+                    if (path == null) {
+                        return null;
+                    }
+                    Issue reportIssue = new ReportIssue(issue.key(), issue.componentKey(), strings.intern(path),
+                            issue.ruleKey() == null ? null : ruleKeys.intern(issue.ruleKey()),
+                            issue.severity() == null ? null : strings.intern(issue.severity()), issue.message(),
+                            issue.line(), markdownCache);
+                    if (issuesOnDiffLines != null && isOnDiffLine(reportIssue, path, diffReport)) {
+                        issuesOnDiffLines.accept(reportIssue);
+                    }
+                    return reportIssue;
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
     }
 
-    private static boolean shouldIncludeIssue(Issue issue, IssuePathResolver issuePathResolver, StashDiffReport diffReport) {
+    /**
+     * The issues of the report on a line of the diff view, the only ones which
+     * can be commented.
+     */
+    public static List<Issue> extractIssuesOnDiffLines(List<Issue> issueReport, StashDiffReport diffReport,
+            IssuePathResolver issuePathResolver) {
+        return issueReport.stream()
+                .filter(issue -> isOnDiffLine(issue, issuePathResolver.getIssuePath(issue), diffReport))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isOnDiffLine(Issue issue, String path, StashDiffReport diffReport) {
+        if (diffReport.getType(path, issue.line() == null ? 0 : issue.line()) != null) {
+            return true;
+        }
+
+        LOGGER.debug("Issue {} is not on a line of the diff, not commented, issue.key = {}, issue.line = {}", issue,
+                issue.key(), issue.line());
+        return false;
+    }
+
+    /*
+     * Path of the issue if it belongs to the report, null otherwise.
+     */
+    private static String getIncludedIssuePath(Issue issue, IssuePathResolver issuePathResolver, StashDiffReport diffReport) {
         if (!issue.isNew()) {
             LOGGER.debug(
                     "Issue {} is not a new issue and so, not added to the report, issue.componentKey = {}, issue.actionPlanKey = {}, issue.key = {}, issue.ruleKey = {}, issue.message = {}, issue.line = {}, issue.resolution = {}, issue.attributes = {}",
                     issue, issue.componentKey(), issue.actionPlanKey(), issue.key(), issue.ruleKey(), issue.message(),
                     issue.line(), issue.resolution(), issue.attributes());
-            return false;
+            return null;
         }
 
         String path = issuePathResolver.getIssuePath(issue);
@@ -45,7 +114,7 @@ public final class SonarQubeCollector {
                     "Issue {} is not linked to a file, not added to the report, issue.componentKey = {}, issue.actionPlanKey = {}, issue.key = {}, issue.ruleKey = {}, issue.message = {}, issue.line = {}, issue.resolution = {}, issue.attributes = {}",
                     issue, issue.componentKey(), issue.actionPlanKey(), issue.key(), issue.ruleKey(), issue.message(),
                     issue.line(), issue.resolution(), issue.attributes());
-            return false;
+            return null;
         }
 
         if (!diffReport.hasPath(path)) {
@@ -53,13 +122,13 @@ public final class SonarQubeCollector {
                     "Issue {} is not linked to a diff, not added to the report, issue.componentKey = {}, issue.actionPlanKey = {}, issue.key = {}, issue.ruleKey = {}, issue.message = {}, issue.line = {}, issue.resolution = {}, issue.attributes = {}",
                     issue, issue.componentKey(), issue.actionPlanKey(), issue.key(), issue.ruleKey(), issue.message(),
                     issue.line(), issue.resolution(), issue.attributes());
-            return false;
+            return null;
         }
 
         LOGGER.debug(
                 "Issue {} is added to the report, issue.componentKey = {}, issue.actionPlanKey = {}, issue.key = {}, issue.ruleKey = {}, issue.message = {}, issue.line = {}, issue.resolution = {}, issue.attributes = {}",
                 issue, issue.componentKey(), issue.actionPlanKey(), issue.key(), issue.ruleKey(), issue.message(), issue.line(),
                 issue.resolution(), issue.attributes());
-        return true;
+        return path;
     }
 }
@@ -1,18 +1,32 @@
 package org.sonar.plugins.stash.issue.collector;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.simple.DeserializationException;
 import org.json.simple.JsonArray;
 import org.json.simple.JsonObject;
 import org.json.simple.Jsoner;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.sonar.plugins.stash.PullRequestRef;
 import org.sonar.plugins.stash.StashPlugin;
 import org.sonar.plugins.stash.exceptions.StashReportExtractionException;
 import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
-import org.sonar.plugins.stash.issue.StashDiff;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 import org.sonar.plugins.stash.issue.StashPullRequest;
 import org.sonar.plugins.stash.issue.StashTask;
@@ -30,6 +44,7 @@ public final class StashCollector {
 
     public static StashCommentReport extractComments(JsonObject jsonComments) throws StashReportExtractionException {
         StashCommentReport result = new StashCommentReport();
+        ResponseCache cache = new ResponseCache();
 
         JsonArray jsonValues = (JsonArray) jsonComments.get("values");
         if (jsonValues != null) {
@@ -37,7 +52,7 @@ public final class StashCollector {
             for (Object obj : jsonValues.toArray()) {
                 JsonObject jsonComment = (JsonObject) obj;
 
-                StashComment comment = extractComment(jsonComment);
+                StashComment comment = extractComment(jsonComment, cache);
                 result.add(comment);
             }
         }
@@ -46,6 +61,10 @@ public final class StashCollector {
     }
 
     public static StashComment extractComment(JsonObject jsonComment, String path, Long line) {
+        return extractComment(jsonComment, path, line, new ResponseCache());
+    }
+
+    private static StashComment extractComment(JsonObject jsonComment, String path, Long line, ResponseCache cache) {
 
         long id = jsonComment.getLong("id");
         String message = jsonComment.getString("text");
@@ -53,12 +72,17 @@ public final class StashCollector {
         long version = jsonComment.getLong(VERSION);
 
         JsonObject jsonAuthor = (JsonObject) jsonComment.get(AUTHOR);
-        StashUser stashUser = extractUser(jsonAuthor);
+        StashUser stashUser = cache.getUser(jsonAuthor);
 
         return new StashComment(id, message, path, line, stashUser, version);
     }
 
     public static StashComment extractComment(JsonObject jsonComment) throws StashReportExtractionException {
+        return extractComment(jsonComment, new ResponseCache());
+    }
+
+    private static StashComment extractComment(JsonObject jsonComment, ResponseCache cache)
+            throws StashReportExtractionException {
 
         JsonObject jsonAnchor = (JsonObject) jsonComment.get("anchor");
         if (jsonAnchor == null) {
@@ -66,7 +90,7 @@ public final class StashCollector {
                     "JSON Comment does not contain any \"anchor\" tag" + " to describe comment \"line\" and \"path\"");
         }
 
-        String path = (String) jsonAnchor.get("path");
+        String path = cache.getPath((String) jsonAnchor.get("path"));
 
         // can be null if comment is attached to the global file
         Long line = null;
@@ -74,7 +98,10 @@ public final class StashCollector {
             line = jsonAnchor.getLong("line");
         }
 
-        return extractComment(jsonComment, path, line);
+        StashComment comment = extractComment(jsonComment, path, line, cache);
+        comment.setFileType((String) jsonAnchor.get("fileType"));
+
+        return comment;
     }
 
     public static StashPullRequest extractPullRequest(PullRequestRef pr, JsonObject jsonPullRequest) {
@@ -109,78 +136,117 @@ public final class StashCollector {
     }
 
     public static StashDiffReport extractDiffs(JsonObject jsonObject) throws StashReportExtractionException {
+        return extractDiffs(jsonObject, null);
+    }
+
+    /**
+     * Extract the diffs of the given files only: the hunks and comments of the
+     * other files are skipped without being parsed.
+     *
+     * @param paths
+     *            files to extract, null for all of them
+     */
+    public static StashDiffReport extractDiffs(JsonObject jsonObject, Set<String> paths)
+            throws StashReportExtractionException {
+        return extractDiffs(jsonObject, paths, 0);
+    }
+
+    /**
+     * @param memoryBudget
+     *            memory the lines of the report may use while it is built, 0
+     *            for no limit
+     */
+    public static StashDiffReport extractDiffs(JsonObject jsonObject, Set<String> paths, long memoryBudget)
+            throws StashReportExtractionException {
 
         StashDiffReport result = new StashDiffReport();
+        result.setMemoryBudget(memoryBudget);
+        ResponseCache cache = new ResponseCache();
         JsonArray jsonDiffs = (JsonArray) jsonObject.get("diffs");
 
         if (jsonDiffs == null) {
             return null;
         }
 
-        // Let's call this for loop "objdiff_loop"
         for (Object objDiff : jsonDiffs.toArray()) {
+            extractDiff(result, (JsonObject) objDiff, paths, cache);
+        }
+        return result;
+    }
 
-            JsonObject jsonDiff = (JsonObject) objDiff;
-            // destination path in diff view
-            // if status of the file is deleted, destination == null
-            JsonObject destinationPath = (JsonObject) jsonDiff.get("destination");
-
-            if (destinationPath == null) {
-                continue; // Let's process the next item in "objdiff_loop"
-            }
-
-            String path = (String) destinationPath.get("toString");
-            JsonArray jsonHunks = (JsonArray) jsonDiff.get("hunks");
-
-            if (jsonHunks == null) {
-                continue; // Let's process the next item in "objdiff_loop"
-            }
-
-            // calling the extracted section to scan the jsonHunks & jsonDiff
-            // into usable diffs
-            result.add(parseHunksIntoDiffs(path, jsonHunks, jsonDiff));
+    /**
+     * Extract the diffs while the response is read: only the diff of the
+     * current file is held as JSON, instead of the whole response.
+     *
+     * @param memoryBudget
+     *            memory the report may use while it is built, 0 for no limit
+     */
+    public static StashDiffReport extractDiffs(Reader reader, Set<String> paths, long memoryBudget)
+            throws StashReportExtractionException {
 
-            // Extract File Comments: this kind of comment will be attached to
-            // line 0
-            JsonArray jsonLineComments = (JsonArray) jsonDiff.get("fileComments");
+        StashDiffReport result = new StashDiffReport();
+        result.setMemoryBudget(memoryBudget);
+        ResponseCache cache = new ResponseCache();
+        DiffHandler handler = new DiffHandler(jsonDiff -> extractDiff(result, jsonDiff, paths, cache));
 
-            if (jsonLineComments == null) {
-                continue; // Let's process the next item in "objdiff_loop"
-            }
+        try {
+            newParser().parse(reader, handler);
+        } catch (IOException | ParseException e) {
+            throw new StashReportExtractionException(e);
+        }
+        return handler.hasDiffs() ? result : null;
+    }
 
-            StashDiff initialDiff = new StashDiff(StashPlugin.CONTEXT_ISSUE_TYPE, path, 0, 0);
+    private static void extractDiff(StashDiffReport result, JsonObject jsonDiff, Set<String> paths,
+            ResponseCache cache) {
+        // destination path in diff view
+        // if status of the file is deleted, destination == null
+        JsonObject destinationPath = (JsonObject) jsonDiff.get("destination");
 
-            // Let's call this for loop "objlinc_loop"
-            for (Object objLineComment : jsonLineComments.toArray()) {
+        if (destinationPath == null) {
+            return;
+        }
 
-                JsonObject jsonLineComment = (JsonObject) objLineComment;
+        String path = cache.getPath((String) destinationPath.get("toString"));
+        if (paths != null && !paths.contains(path)) {
+            return;
+        }
 
-                long lineCommentId = jsonLineComment.getLong("id");
-                String lineCommentMessage = jsonLineComment.getString("text");
-                long lineCommentVersion = jsonLineComment.getLong(VERSION);
+        JsonArray jsonHunks = (JsonArray) jsonDiff.get("hunks");
 
-                JsonObject objAuthor = (JsonObject) jsonLineComment.get(AUTHOR);
+        if (jsonHunks == null) {
+            return;
+        }
 
-                if (objAuthor == null) {
-                    continue; // Let's process the next item in "objlinc_loop"
-                }
+        // calling the extracted section to scan the jsonHunks & jsonDiff
+        // into usable diffs
+        Map<Long, JsonObject> jsonLineComments = indexComments((JsonArray) jsonDiff.get("lineComments"));
+        parseHunksIntoDiffs(result, path, jsonHunks, jsonLineComments, cache);
 
-                StashUser author = extractUser(objAuthor);
+        // Extract File Comments: this kind of comment will be attached to
+        // line 0
+        JsonArray jsonFileComments = (JsonArray) jsonDiff.get("fileComments");
 
-                StashComment comment = new StashComment(lineCommentId, lineCommentMessage, path, (long) 0, author,
-                        lineCommentVersion);
-                initialDiff.addComment(comment);
-            }
+        if (jsonFileComments == null) {
+            return;
+        }
 
-            result.add(initialDiff);
+        Map<Long, JsonObject> fileComments = indexComments(jsonFileComments);
+        if (fileComments.isEmpty()) {
+            result.add(StashPlugin.CONTEXT_ISSUE_TYPE, path, 0, 0);
+        } else {
+            addCommentedLine(result, StashPlugin.CONTEXT_ISSUE_TYPE, path, 0, 0,
+                    new ArrayList<>(fileComments.values()), cache);
         }
-        return result;
     }
 
-    private static StashDiffReport parseHunksIntoDiffs(String path, JsonArray jsonHunks, JsonObject jsonDiff)
-            throws StashReportExtractionException {
+    @SuppressWarnings("deprecation")
+    private static JSONParser newParser() {
+        return new JSONParser();
+    }
 
-        StashDiffReport result = new StashDiffReport();
+    private static void parseHunksIntoDiffs(StashDiffReport result, String path, JsonArray jsonHunks,
+            Map<Long, JsonObject> jsonLineComments, ResponseCache cache) {
 
         // Let's call this for loop "objhunk_loop"
         for (Object objHunk : jsonHunks.toArray()) {
@@ -215,107 +281,244 @@ public final class StashCollector {
                     long source = jsonLine.getLong("source");
                     long destination = jsonLine.getLong("destination");
 
-                    StashDiff diff = new StashDiff(type, path, source, destination);
                     // Add comment attached to the current line
-                    JsonArray jsonCommentIds = (JsonArray) jsonLine.get("commentIds");
-
-                    // To keep this method depth under control (squid:S134), we
-                    // outsourced the comments extraction
-                    result.add(extractCommentsForDiff(diff, jsonDiff, jsonCommentIds));
+                    List<JsonObject> jsonComments = getCommentsOfLine((JsonArray) jsonLine.get("commentIds"),
+                            jsonLineComments);
+
+                    // no need to create a diff object for a line without
+                    // comments
+                    if (jsonComments.isEmpty()) {
+                        result.add(type, path, source, destination);
+                    } else {
+                        addCommentedLine(result, type, path, source, destination, jsonComments, cache);
+                    }
                 }
             }
         }
-        return result;
     }
 
-    private static StashDiff extractCommentsForDiff(StashDiff diff, JsonObject jsonDiff, JsonArray jsonCommentIds)
-            throws StashReportExtractionException {
+    /*
+     * Comments with an author by id, in the order of the response.
+     */
+    private static Map<Long, JsonObject> indexComments(JsonArray jsonComments) {
+        if (jsonComments == null) {
+            return Collections.emptyMap();
+        }
 
-        // If there is no comments, we just return the diff as-is
-        if (jsonCommentIds == null) {
-            return diff;
+        Map<Long, JsonObject> result = new LinkedHashMap<>();
+        for (Object objComment : jsonComments.toArray()) {
+            JsonObject jsonComment = (JsonObject) objComment;
+            if (jsonComment.get(AUTHOR) != null) {
+                result.put(jsonComment.getLong("id"), jsonComment);
+            }
         }
+        return result;
+    }
 
-        // Let's call this for loop "objcomm_loop"
+    private static List<JsonObject> getCommentsOfLine(JsonArray jsonCommentIds, Map<Long, JsonObject> jsonLineComments) {
+        if (jsonCommentIds == null || jsonLineComments.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<JsonObject> result = new ArrayList<>();
         for (BigDecimal objCommentId : jsonCommentIds.toArray(new BigDecimal[] {})) {
+            JsonObject jsonComment = jsonLineComments.get(objCommentId.longValueExact());
+            if (jsonComment != null) {
+                result.add(jsonComment);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * The comments and their tasks are built right away, so that the JSON of
+     * the response is not kept along with the report.
+     */
+    private static void addCommentedLine(StashDiffReport result, String type, String path, long source, long destination,
+            List<JsonObject> jsonComments, ResponseCache cache) {
+        result.add(type, path, source, destination, extractLineComments(jsonComments, path, destination, cache));
+    }
 
-            long commentId = objCommentId.longValueExact();
-            JsonArray jsonLineComments = (JsonArray) jsonDiff.get("lineComments");
+    private static List<StashComment> extractLineComments(List<JsonObject> jsonComments, String path, long line,
+            ResponseCache cache) {
+        List<StashComment> result = new ArrayList<>();
+        for (JsonObject jsonComment : jsonComments) {
+            StashComment comment = new StashComment(jsonComment.getLong("id"), jsonComment.getString("text"), path, line,
+                    cache.getUser((JsonObject) jsonComment.get(AUTHOR)), jsonComment.getLong(VERSION));
 
-            if (jsonLineComments == null) {
-                continue; // Let's process the next item in "objcomm_loop"
+            // get the tasks linked to the current comment
+            JsonArray jsonTasks = (JsonArray) jsonComment.get("tasks");
+            if (jsonTasks != null) {
+                for (Object objTask : jsonTasks.toArray()) {
+                    comment.addTask(extractTask((JsonObject) objTask));
+                }
             }
 
-            // Let's call this for loop "objlico_loop"
-            for (Object objLineComment : jsonLineComments.toArray()) {
+            result.add(comment);
+        }
+        return result;
+    }
 
-                JsonObject jsonLineComment = (JsonObject) objLineComment;
-                long lineCommentId = jsonLineComment.getLong("id");
+    public static StashTask extractTask(String jsonBody) throws StashReportExtractionException {
+        try {
+            return extractTask((JsonObject) Jsoner.deserialize(jsonBody));
+        } catch (DeserializationException e) {
+            throw new StashReportExtractionException(e);
+        }
+    }
 
-                if (lineCommentId != commentId) {
-                    continue; // Let's process the next item in "objlico_loop"
-                }
+    public static StashTask extractTask(JsonObject jsonTask) {
+        long taskId = jsonTask.getLong("id");
+        String taskText = jsonTask.getString("text");
+        String taskState = jsonTask.getString("state");
 
-                String lineCommentMessage = (String) jsonLineComment.get("text");
-                long lineCommentVersion = jsonLineComment.getLong(VERSION);
+        boolean deletable = true;
 
-                JsonObject objAuthor = (JsonObject) jsonLineComment.get(AUTHOR);
+        JsonObject objPermission = (JsonObject) jsonTask.get("permittedOperations");
+        if (objPermission != null) {
+            deletable = objPermission.getBoolean("deletable");
+        }
 
-                if (objAuthor == null) {
-                    continue; // Let's process the next item in "objlico_loop"
-                }
+        return new StashTask(taskId, taskText, taskState, deletable);
+    }
 
-                StashUser author = extractUser(objAuthor);
+    public static boolean isLastPage(JsonObject jsonObject) throws StashReportExtractionException {
+        return jsonObject.getBooleanOrDefault("isLastPage", true);
+    }
 
-                StashComment comment = new StashComment(lineCommentId, lineCommentMessage, diff.getPath(), diff.getDestination(),
-                        author, lineCommentVersion);
-                diff.addComment(comment);
+    public static long getNextPageStart(JsonObject jsonObject) throws StashReportExtractionException {
+        return jsonObject.getLongOrDefault("nextPageStart", 0);
+    }
 
-                // get the tasks linked to the current comment
-                JsonArray jsonTasks = (JsonArray) jsonLineComment.get("tasks");
+    /*
+     * Builds the JSON of each item of the "diffs" array of the response, one
+     * at a time, and skips everything else. Numbers are read as BigDecimal,
+     * like Jsoner does.
+     */
+    @SuppressWarnings("deprecation")
+    private static final class DiffHandler implements ContentHandler {
+        private final Consumer<JsonObject> consumer;
+
+        // containers of the diff being built, and keys of their entries
+        private final Deque<Object> containers = new ArrayDeque<>();
+        private final Deque<String> keys = new ArrayDeque<>();
+
+        private int depth;
+        private String rootKey;
+        private boolean inDiffs;
+        private boolean diffs;
+
+        DiffHandler(Consumer<JsonObject> consumer) {
+            this.consumer = consumer;
+        }
 
-                if (jsonTasks == null) {
-                    continue; // Let's process the next item in "objlico_loop"
-                }
+        boolean hasDiffs() {
+            return diffs;
+        }
 
-                for (Object objTask : jsonTasks.toArray()) {
-                    JsonObject jsonTask = (JsonObject) objTask;
+        @Override
+        public void startJSON() {
+            // nothing to do
+        }
 
-                    comment.addTask(extractTask(jsonTask.toJson()));
-                }
+        @Override
+        public void endJSON() {
+            // nothing to do
+        }
+
+        @Override
+        public boolean startObject() {
+            if (!containers.isEmpty() || (inDiffs && depth == 2)) {
+                containers.push(new JsonObject());
             }
+            depth++;
+            return true;
         }
-        return diff;
-    }
 
-    public static StashTask extractTask(String jsonBody) throws StashReportExtractionException {
-        try {
-            JsonObject jsonTask = (JsonObject) Jsoner.deserialize(jsonBody);
+        @Override
+        public boolean endObject() {
+            depth--;
+            if (!containers.isEmpty()) {
+                addValue(containers.pop());
+            }
+            return true;
+        }
 
-            long taskId = jsonTask.getLong("id");
-            String taskText = jsonTask.getString("text");
-            String taskState = jsonTask.getString("state");
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (depth == 1) {
+                rootKey = key;
+            } else if (!containers.isEmpty()) {
+                keys.push(key);
+            }
+            return true;
+        }
 
-            boolean deletable = true;
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
 
-            JsonObject objPermission = (JsonObject) jsonTask.get("permittedOperations");
-            if (objPermission != null) {
-                deletable = objPermission.getBoolean("deletable");
+        @Override
+        public boolean startArray() {
+            if (!containers.isEmpty()) {
+                containers.push(new JsonArray());
+            } else if (depth == 1 && "diffs".equals(rootKey)) {
+                inDiffs = true;
+                diffs = true;
             }
+            depth++;
+            return true;
+        }
 
-            return new StashTask(taskId, taskText, taskState, deletable);
+        @Override
+        public boolean endArray() {
+            depth--;
+            if (!containers.isEmpty()) {
+                addValue(containers.pop());
+            } else if (depth == 1) {
+                inDiffs = false;
+            }
+            return true;
+        }
 
-        } catch (DeserializationException e) {
-            throw new StashReportExtractionException(e);
+        @Override
+        public boolean primitive(Object value) {
+            if (!containers.isEmpty()) {
+                addValue(value instanceof Number ? new BigDecimal(value.toString()) : value);
+            }
+            return true;
         }
-    }
 
-    public static boolean isLastPage(JsonObject jsonObject) throws StashReportExtractionException {
-        return jsonObject.getBooleanOrDefault("isLastPage", true);
+        private void addValue(Object value) {
+            Object container = containers.peek();
+            if (container == null) {
+                consumer.accept((JsonObject) value);
+            } else if (container instanceof JsonArray) {
+                ((JsonArray) container).add(value);
+            } else {
+                ((JsonObject) container).put(keys.pop(), value);
+            }
+        }
     }
 
-    public static long getNextPageStart(JsonObject jsonObject) throws StashReportExtractionException {
-        return jsonObject.getLongOrDefault("nextPageStart", 0);
-    }
+    /*
+     * Objects shared by the items of one response: the same few authors and
+     * paths are repeated on every comment of a big pull-request.
+     */
+    private static final class ResponseCache {
+        private final Map<Long, StashUser> users = new HashMap<>();
+        private final Map<String, String> paths = new HashMap<>();
+
+        StashUser getUser(JsonObject jsonUser) {
+            return users.computeIfAbsent(jsonUser.getLong("id"), id -> extractUser(jsonUser));
+        }
 
+        String getPath(String path) {
+            if (path == null) {
+                return null;
+            }
+            return paths.computeIfAbsent(path, p -> p);
+        }
+    }
 }
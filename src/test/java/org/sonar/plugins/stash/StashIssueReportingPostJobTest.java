@@ -8,22 +8,34 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.ProjectIssues;
+import org.sonar.api.issue.internal.DefaultIssue;
 import org.sonar.api.resources.Project;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.client.HttpClientSettings;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.coverage.CoverageProjectStore;
+import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashDiffReport;
+import org.sonar.plugins.stash.issue.StashPullRequest;
 import org.sonar.plugins.stash.issue.StashUser;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -37,6 +49,9 @@ public class StashIssueReportingPostJobTest extends StashTest {
     @Mock
     StashRequestFacade stashRequestFacade;
 
+    @Mock
+    StashPrefetcher stashPrefetcher;
+
     @Mock
     StashPluginConfiguration config;
 
@@ -82,7 +97,9 @@ public class StashIssueReportingPostJobTest extends StashTest {
         when(config.includeAnalysisOverview()).thenReturn(Boolean.TRUE);
 
         when(report.size()).thenReturn(10);
-        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject())).thenReturn(report);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject(), anyObject())).thenReturn(report);
+        when(stashRequestFacade.getIssuesToComment(Mockito.anyListOf(Issue.class), anyObject()))
+                .thenAnswer(invocation -> invocation.getArguments()[0]);
 
         when(coverageProjectStore.getProjectCoverage()).thenReturn(20.0);
         when(coverageProjectStore.getPreviousProjectCoverage()).thenReturn(10.0);
@@ -93,6 +110,7 @@ public class StashIssueReportingPostJobTest extends StashTest {
         when(stashRequestFacade.getStashRepository()).thenReturn(STASH_REPOSITORY);
         when(stashRequestFacade.getStashPullRequestId()).thenReturn(STASH_PULLREQUEST_ID);
         when(stashRequestFacade.getCredentials()).thenReturn(new StashCredentials(STASH_LOGIN, STASH_PASSWORD));
+        when(stashRequestFacade.getHttpClientSettings()).thenReturn(HttpClientSettings.defaults());
         when(stashRequestFacade.getSonarQubeReviewer(Mockito.anyString(), (StashClient) Mockito.anyObject()))
                 .thenReturn(stashUser);
         when(stashRequestFacade.getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject())).thenReturn(diffReport);
@@ -104,12 +122,12 @@ public class StashIssueReportingPostJobTest extends StashTest {
 
     @Test
     public void testExecuteOn() throws Exception {
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
                 (StashClient) Mockito.anyObject());
@@ -123,28 +141,54 @@ public class StashIssueReportingPostJobTest extends StashTest {
 
         List<Issue> report = spy(new ArrayList<Issue>());
         when(report.size()).thenReturn(55);
-        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject())).thenReturn(report);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject(), anyObject())).thenReturn(report);
 
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(10), eq(report), (StashClient) Mockito.anyObject());
     }
 
+    @Test
+    public void testExecuteOnWithTopIssues() throws Exception {
+        when(stashRequestFacade.getIssueThreshold()).thenReturn(2);
+        when(config.getTopIssueCount()).thenReturn(2);
+
+        Issue minor = new DefaultIssue().setKey("minor").setSeverity(Severity.MINOR).setRuleKey(RuleKey.of("repo", "rule"));
+        Issue major = new DefaultIssue().setKey("major").setSeverity(Severity.MAJOR).setRuleKey(RuleKey.of("repo", "rule"));
+        Issue blocker = new DefaultIssue().setKey("blocker").setSeverity(Severity.BLOCKER).setRuleKey(RuleKey.of("repo", "rule"));
+        Issue outOfDiff = new DefaultIssue().setKey("outOfDiff").setSeverity(Severity.BLOCKER).setRuleKey(RuleKey.of("repo", "rule"));
+        List<Issue> report = Arrays.asList(minor, blocker, outOfDiff, major);
+        // only the issues on a line of the diff are candidates
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject(), anyObject())).thenAnswer(invocation -> {
+            TopIssues topIssues = (TopIssues) invocation.getArguments()[2];
+            Arrays.asList(minor, blocker, major).forEach(topIssues);
+            return report;
+        });
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(Arrays.asList(blocker, major)), eq(diffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).getIssuesToComment(Mockito.anyListOf(Issue.class), anyObject());
+        verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(2), eq(report), (StashClient) Mockito.anyObject());
+    }
+
     @Test
     public void testExecuteOnWithNoPluginActivation() throws Exception {
         when(config.hasToNotifyStash()).thenReturn(false);
 
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
                 (StashClient) Mockito.anyObject());
@@ -156,12 +200,12 @@ public class StashIssueReportingPostJobTest extends StashTest {
     public void testExecuteOnWithNoStashUserDefined() throws Exception {
         when(stashRequestFacade.getSonarQubeReviewer(Mockito.anyString(), (StashClient) Mockito.anyObject())).thenReturn(null);
 
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
                 (StashClient) Mockito.anyObject());
@@ -172,29 +216,64 @@ public class StashIssueReportingPostJobTest extends StashTest {
     @Test
     public void testExecuteOnWithResetCommentActivated() throws Exception {
         when(config.resetComments()).thenReturn(true);
+        List<StashComment> deletedComments = Arrays.asList(Mockito.mock(StashComment.class));
+        when(stashRequestFacade.resetComments(eq(pr), eq(diffReport), eq(stashUser), (StashClient) Mockito.anyObject()))
+                .thenReturn(deletedComments);
 
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(1)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), eq(deletedComments),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
+                (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnWithReconcileCommentActivated() throws Exception {
+        when(config.resetComments()).thenReturn(true);
+        when(config.reconcileComments()).thenReturn(true);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).reconcileComments(eq(pr), eq(report), eq(diffReport), eq(stashUser),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
                 (StashClient) Mockito.anyObject());
     }
 
+    @Test
+    public void testExecuteOnWithReconcileCommentActivatedAndReachedThreshold() throws Exception {
+        when(config.reconcileComments()).thenReturn(true);
+        when(stashRequestFacade.getIssueThreshold()).thenReturn(10);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(1)).reconcileComments(eq(pr), eq(new ArrayList<Issue>()), eq(diffReport),
+                eq(stashUser), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+    }
+
     @Test
     public void testExecuteOnWithNoDiffReport() throws Exception {
         diffReport = null;
         when(stashRequestFacade.getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject())).thenReturn(diffReport);
 
-        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade);
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
         myJob.executeOn(project, context);
 
         verify(stashRequestFacade, times(0)).resetComments(eq(pr), eq(diffReport), eq(stashUser),
                 (StashClient) Mockito.anyObject());
-        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport),
+        verify(stashRequestFacade, times(0)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
                 (StashClient) Mockito.anyObject());
         verify(stashRequestFacade, times(0)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
                 (StashClient) Mockito.anyObject());
@@ -202,6 +281,173 @@ public class StashIssueReportingPostJobTest extends StashTest {
         verify(stashRequestFacade, times(0)).resetPullRequestApproval(eq(pr), (StashClient) Mockito.anyObject());
     }
 
+    @Test
+    public void testExecuteOnWithPrefetchedData() throws Exception {
+        StashDiffReport prefetchedDiffReport = Mockito.mock(StashDiffReport.class);
+        StashPullRequest prefetchedPullRequest = Mockito.mock(StashPullRequest.class);
+        when(config.canApprovePullRequest()).thenReturn(true);
+        when(stashPrefetcher.getSonarQubeReviewer()).thenReturn(stashUser);
+        when(stashPrefetcher.getPullRequestDiffReport(null)).thenReturn(prefetchedDiffReport);
+        when(stashPrefetcher.getPullRequest()).thenReturn(prefetchedPullRequest);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), eq(prefetchedDiffReport), anyObject())).thenReturn(report);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(0)).getSonarQubeReviewer(Mockito.anyString(), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).addPullRequestReviewer(eq(pr), eq(stashUser), eq(prefetchedPullRequest),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(prefetchedDiffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnWithDiffOfIssuePaths() throws Exception {
+        StashDiffReport pathDiffReport = Mockito.mock(StashDiffReport.class);
+        Set<String> paths = Collections.singleton("path/to/file");
+        when(stashRequestFacade.isDiffOfIssuePathsOnly()).thenReturn(true);
+        when(stashRequestFacade.getIssuePaths(projectIssues)).thenReturn(paths);
+        when(stashRequestFacade.getPullRequestDiffReport(eq(pr), eq(paths), (StashClient) Mockito.anyObject()))
+                .thenReturn(pathDiffReport);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), eq(pathDiffReport), anyObject())).thenReturn(report);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(0)).getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(pathDiffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnWithPrefetchedDiffOfIssuePaths() throws Exception {
+        StashDiffReport pathDiffReport = Mockito.mock(StashDiffReport.class);
+        Set<String> paths = Collections.singleton("path/to/file");
+        when(stashRequestFacade.isDiffOfIssuePathsOnly()).thenReturn(true);
+        when(stashRequestFacade.getIssuePaths(projectIssues)).thenReturn(paths);
+        when(stashPrefetcher.getPullRequestDiffReport(paths)).thenReturn(pathDiffReport);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), eq(pathDiffReport), anyObject())).thenReturn(report);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashPrefetcher, times(0)).getPullRequestDiffReport(null);
+        verify(stashRequestFacade, times(0)).getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).getPullRequestDiffReport(eq(pr), Mockito.anyCollectionOf(String.class),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(pathDiffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnFetchesReviewerAndDiffConcurrently() throws Exception {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        when(stashRequestFacade.getSonarQubeReviewer(Mockito.anyString(), (StashClient) Mockito.anyObject()))
+                .thenAnswer(invocation -> awaitLatch(bothStarted) ? stashUser : null);
+        when(stashRequestFacade.getPullRequestDiffReport(eq(pr), (StashClient) Mockito.anyObject()))
+                .thenAnswer(invocation -> awaitLatch(bothStarted) ? diffReport : null);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
+                (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnWithPullRequestApproval() throws Exception {
+        when(config.canApprovePullRequest()).thenReturn(true);
+        when(report.size()).thenReturn(0);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(1)).addPullRequestReviewer(eq(pr), eq(stashUser), Mockito.any(),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).approvePullRequest(eq(pr), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(0)).resetPullRequestApproval(eq(pr), (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnUpdatesApprovalAfterComments() throws Exception {
+        when(config.canApprovePullRequest()).thenReturn(true);
+        when(config.resetComments()).thenReturn(true);
+        when(report.size()).thenReturn(0);
+        // slow posts, the approval would otherwise come first
+        Mockito.doAnswer(invocation -> sleep()).when(stashRequestFacade).postSonarQubeReport(eq(pr), eq(report),
+                eq(diffReport), Mockito.anyListOf(StashComment.class), (StashClient) Mockito.anyObject());
+        Mockito.doAnswer(invocation -> sleep()).when(stashRequestFacade).postAnalysisOverview(eq(pr),
+                eq(STASH_ISSUE_THRESHOLD), eq(report), (StashClient) Mockito.anyObject());
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        InOrder commentsOrder = Mockito.inOrder(stashRequestFacade);
+        commentsOrder.verify(stashRequestFacade).resetComments(eq(pr), eq(diffReport), eq(stashUser),
+                (StashClient) Mockito.anyObject());
+        commentsOrder.verify(stashRequestFacade).postSonarQubeReport(eq(pr), eq(report), eq(diffReport), Mockito.anyListOf(StashComment.class),
+                (StashClient) Mockito.anyObject());
+        commentsOrder.verify(stashRequestFacade).approvePullRequest(eq(pr), (StashClient) Mockito.anyObject());
+
+        InOrder overviewOrder = Mockito.inOrder(stashRequestFacade);
+        overviewOrder.verify(stashRequestFacade).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
+                (StashClient) Mockito.anyObject());
+        overviewOrder.verify(stashRequestFacade).approvePullRequest(eq(pr), (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnCommentsIssuesOnDiffLinesOnly() throws Exception {
+        when(config.canApprovePullRequest()).thenReturn(true);
+
+        Issue onDiffLine = new DefaultIssue().setKey("onDiffLine").setSeverity(Severity.MAJOR);
+        Issue outOfDiff = new DefaultIssue().setKey("outOfDiff").setSeverity(Severity.MAJOR);
+        List<Issue> report = Arrays.asList(onDiffLine, outOfDiff);
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject(), anyObject())).thenReturn(report);
+        when(stashRequestFacade.getIssuesToComment(report, diffReport)).thenReturn(Collections.singletonList(onDiffLine));
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(1)).postSonarQubeReport(eq(pr), eq(Collections.singletonList(onDiffLine)),
+                eq(diffReport), Mockito.anyListOf(StashComment.class), (StashClient) Mockito.anyObject());
+        // the overview and the approval count all the issues
+        verify(stashRequestFacade, times(1)).postAnalysisOverview(eq(pr), eq(STASH_ISSUE_THRESHOLD), eq(report),
+                (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).resetPullRequestApproval(eq(pr), (StashClient) Mockito.anyObject());
+    }
+
+    @Test
+    public void testExecuteOnWithPullRequestApprovalAndNewIssues() throws Exception {
+        when(config.canApprovePullRequest()).thenReturn(true);
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+
+        verify(stashRequestFacade, times(0)).approvePullRequest(eq(pr), (StashClient) Mockito.anyObject());
+        verify(stashRequestFacade, times(1)).resetPullRequestApproval(eq(pr), (StashClient) Mockito.anyObject());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExecuteOnRethrowsUnexpectedException() throws Exception {
+        when(stashRequestFacade.extractIssueReport(eq(projectIssues), anyObject(), anyObject())).thenThrow(new IllegalStateException());
+
+        myJob = new StashIssueReportingPostJob(config, projectIssues, stashRequestFacade, stashPrefetcher);
+        myJob.executeOn(project, context);
+    }
+
+    private static Object sleep() throws InterruptedException {
+        Thread.sleep(200);
+        return null;
+    }
+
+    private static boolean awaitLatch(CountDownLatch latch) throws InterruptedException {
+        latch.countDown();
+        return latch.await(5, TimeUnit.SECONDS);
+    }
+
     /*
      * FIXME
      * 
@@ -4,8 +4,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.sonar.plugins.stash.StashPluginUtils.formatPercentage;
+import static org.sonar.plugins.stash.StashPluginUtils.join;
 import static org.sonar.plugins.stash.StashPluginUtils.roundedPercentageGreaterThan;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
 import org.junit.Test;
 
 public class StashPluginUtilsTest {
@@ -35,4 +40,33 @@ public class StashPluginUtilsTest {
 
         assertTrue(roundedPercentageGreaterThan(1.05, 1.00));
     }
+
+    @Test
+    public void testJoin() {
+        assertEquals("value", join(CompletableFuture.completedFuture("value")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testJoinRethrowsUncheckedException() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException());
+        join(future);
+    }
+
+    @Test(expected = CompletionException.class)
+    public void testJoinWrapsCheckedException() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(new Exception());
+        join(future);
+    }
+
+    @Test
+    public void testCreateExecutor() throws Exception {
+        ExecutorService executor = StashPluginUtils.createExecutor("test", 0);
+        try {
+            assertEquals("stash-test-0", executor.submit(() -> Thread.currentThread().getName()).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package org.sonar.plugins.stash;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.plugins.stash.client.HttpClientSettings;
+import org.sonar.plugins.stash.client.StashCredentials;
+import org.sonar.plugins.stash.exceptions.StashConfigurationException;
+import org.sonar.plugins.stash.issue.StashDiffReport;
+import org.sonar.plugins.stash.issue.collector.DiffReportSample;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class StashPrefetcherTest extends StashTest {
+
+    private static final String PR_API = "/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1";
+
+    @Rule
+    public WireMockRule wireMock = new WireMockRule(new WireMockConfiguration().dynamicPort());
+
+    StashPluginConfiguration config;
+    StashRequestFacade stashRequestFacade;
+    StashPrefetcher prefetcher;
+
+    PullRequestRef pr = PullRequestRef.builder().setProject("Project").setRepository("Repository").setPullRequestId(1).build();
+
+    @Before
+    public void setUp() throws Exception {
+        config = mock(StashPluginConfiguration.class);
+        when(config.getStashTimeout()).thenReturn(5000);
+
+        stashRequestFacade = mock(StashRequestFacade.class);
+        when(stashRequestFacade.getStashURL()).thenReturn("http://127.0.0.1:" + wireMock.port());
+        when(stashRequestFacade.getCredentials()).thenReturn(new StashCredentials("sonarqube", "password"));
+        when(stashRequestFacade.getPullRequest()).thenReturn(pr);
+        when(stashRequestFacade.getHttpClientSettings()).thenReturn(HttpClientSettings.defaults());
+
+        prefetcher = new StashPrefetcher(config);
+    }
+
+    @After
+    public void tearDown() {
+        prefetcher.stop();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        wireMock.stubFor(get(urlPathEqualTo("/rest/api/1.0/users/sonarqube")).willReturn(aJsonResponse(
+                "{\"name\":\"SonarQube\", \"email\":\"sq@email.com\", \"id\":1, \"slug\":\"sonarqube\"}")));
+        wireMock.stubFor(get(urlPathEqualTo(PR_API)).willReturn(aJsonResponse("{\"version\": 3, \"reviewers\": []}")));
+        wireMock.stubFor(get(urlPathEqualTo(PR_API + "/diff")).willReturn(aJsonResponse(DiffReportSample.baseReport)));
+
+        prefetcher.prefetch(stashRequestFacade);
+        prefetcher.prefetch(stashRequestFacade);
+
+        assertEquals("sonarqube", prefetcher.getSonarQubeReviewer().getSlug());
+        assertEquals(3, prefetcher.getPullRequest().getVersion());
+        assertEquals(4, prefetcher.getPullRequestDiffReport(null).getDiffs().size());
+        assertTrue(prefetcher.getPullRequestDiffReport(null).hasPath("stash-plugin/Test.java"));
+
+        verify(stashRequestFacade, times(1)).getStashURL();
+    }
+
+    @Test
+    public void testPrefetchSharesReportWithViewsOfGivenPaths() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse("{\"version\": 3, \"reviewers\": []}")));
+        wireMock.stubFor(get(urlPathEqualTo(PR_API + "/diff")).willReturn(aJsonResponse(DiffReportSample.multipleFileReport)));
+
+        prefetcher.prefetch(stashRequestFacade);
+
+        StashDiffReport diffReport = prefetcher.getPullRequestDiffReport(Collections.singleton("stash-plugin/Test1.java"));
+        assertEquals(1, diffReport.getDiffs().size());
+        assertEquals("stash-plugin/Test1.java", diffReport.getDiffs().get(0).getPath());
+        assertFalse(diffReport.hasPath("stash-plugin/Test.java"));
+        assertTrue(prefetcher.getPullRequestDiffReport(Collections.<String>emptySet()).getDiffs().isEmpty());
+        // the diff is parsed once
+        assertSame(prefetcher.getPullRequestDiffReport(null), prefetcher.getPullRequestDiffReport(null));
+        assertEquals(2, prefetcher.getPullRequestDiffReport(null).getDiffs().size());
+        assertFalse(prefetcher.getPullRequestDiffReport(null).isSpilled());
+        wireMock.verify(1, getRequestedFor(urlPathEqualTo(PR_API + "/diff")));
+    }
+
+    @Test
+    public void testPrefetchWithMemoryBudget() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse("{\"version\": 3, \"reviewers\": []}")));
+        wireMock.stubFor(get(urlPathEqualTo(PR_API + "/diff")).willReturn(aJsonResponse(DiffReportSample.multipleFileReport)));
+        when(config.getDiffMemoryBudget()).thenReturn((long) 1);
+
+        prefetcher.prefetch(stashRequestFacade);
+
+        assertTrue(prefetcher.getPullRequestDiffReport(null).isSpilled());
+        assertEquals(2, prefetcher.getPullRequestDiffReport(null).getDiffs().size());
+    }
+
+    @Test
+    public void testPrefetchWithDiffPerPath() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse("{\"version\": 3, \"reviewers\": []}")));
+        when(stashRequestFacade.isDiffPerPath()).thenReturn(true);
+
+        prefetcher.prefetch(stashRequestFacade);
+
+        assertEquals(3, prefetcher.getPullRequest().getVersion());
+        assertNull(prefetcher.getPullRequestDiffReport(null));
+        wireMock.verify(0, getRequestedFor(urlPathEqualTo(PR_API + "/diff")));
+    }
+
+    @Test
+    public void testPrefetchWithFailedRequests() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aResponse().withStatus(500)));
+
+        prefetcher.prefetch(stashRequestFacade);
+
+        assertNull(prefetcher.getSonarQubeReviewer());
+        assertNull(prefetcher.getPullRequest());
+        assertNull(prefetcher.getPullRequestDiffReport(null));
+    }
+
+    @Test
+    public void testPrefetchWithConfigurationError() throws Exception {
+        when(stashRequestFacade.getStashURL()).thenThrow(new StashConfigurationException("no url"));
+
+        prefetcher.prefetch(stashRequestFacade);
+
+        assertNull(prefetcher.getSonarQubeReviewer());
+        assertNull(prefetcher.getPullRequest());
+        assertNull(prefetcher.getPullRequestDiffReport(null));
+    }
+
+    @Test
+    public void testStopCancelsPrefetch() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse("{}").withFixedDelay(2000)));
+
+        prefetcher.prefetch(stashRequestFacade);
+        prefetcher.stop();
+
+        assertNull(prefetcher.getSonarQubeReviewer());
+        assertNull(prefetcher.getPullRequest());
+        assertNull(prefetcher.getPullRequestDiffReport(null));
+    }
+
+    @Test
+    public void testWithoutPrefetch() {
+        assertNull(prefetcher.getSonarQubeReviewer());
+        assertNull(prefetcher.getPullRequest());
+        assertNull(prefetcher.getPullRequestDiffReport(null));
+    }
+
+    private static ResponseDefinitionBuilder aJsonResponse(String body) {
+        return aResponse().withHeader("Content-Type", "application/json").withBody(body);
+    }
+}
@@ -3,20 +3,31 @@ package org.sonar.plugins.stash;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -26,20 +37,25 @@ import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.Spy;
+import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.rule.ActiveRules;
 import org.sonar.api.batch.rule.internal.ActiveRulesBuilder;
 import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.ProjectIssues;
 import org.sonar.api.issue.internal.DefaultIssue;
 import org.sonar.api.rule.RuleKey;
 import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.client.HttpClientSettings;
 import org.sonar.plugins.stash.client.StashClient;
 import org.sonar.plugins.stash.client.StashCredentials;
 import org.sonar.plugins.stash.coverage.CoverageProjectStore;
 import org.sonar.plugins.stash.exceptions.StashClientException;
 import org.sonar.plugins.stash.exceptions.StashConfigurationException;
 import org.sonar.plugins.stash.issue.MarkdownPrinter;
+import org.sonar.plugins.stash.issue.ReportIssue;
 import org.sonar.plugins.stash.issue.StashComment;
 import org.sonar.plugins.stash.issue.StashCommentReport;
+import org.sonar.plugins.stash.issue.StashDiff;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 import org.sonar.plugins.stash.issue.StashPullRequest;
 import org.sonar.plugins.stash.issue.StashTask;
@@ -108,6 +124,7 @@ public class StashRequestFacadeTest extends StashTest {
         config = mock(StashPluginConfiguration.class);
         when(config.getTaskIssueSeverityThreshold()).thenReturn(StashPlugin.SEVERITY_NONE);
         when(config.getSonarQubeURL()).thenReturn(SONARQUBE_URL);
+        when(config.fetchCommentsPerFile()).thenReturn(true);
 
         ActiveRules activeRules = new ActiveRulesBuilder().build();
         CoverageProjectStore coverageProjectStore = new CoverageProjectStore(config, activeRules);
@@ -274,6 +291,37 @@ public class StashRequestFacadeTest extends StashTest {
         myFacade.getIssueThreshold();
     }
 
+    @Test
+    public void testGetHttpClientSettings() throws StashConfigurationException {
+        when(config.useHttpNativeTransport()).thenReturn(true);
+        when(config.getHttpIoThreads()).thenReturn(2);
+        when(config.getHttpAllocator()).thenReturn("pooled");
+        when(config.getHttpThreadName()).thenReturn("stash");
+
+        HttpClientSettings settings = myFacade.getHttpClientSettings();
+        assertTrue(settings.useNativeTransport());
+        assertEquals(2, settings.ioThreads());
+        assertEquals(HttpClientSettings.Allocator.POOLED, settings.allocator());
+        assertEquals("stash", settings.threadPoolName());
+    }
+
+    @Test
+    public void testGetHttpClientSettingsWithDefaults() throws StashConfigurationException {
+        when(config.getHttpThreadName()).thenReturn(" ");
+
+        HttpClientSettings settings = myFacade.getHttpClientSettings();
+        assertFalse(settings.useNativeTransport());
+        assertEquals(0, settings.ioThreads());
+        assertEquals(HttpClientSettings.Allocator.DEFAULT, settings.allocator());
+        assertNull(settings.threadPoolName());
+    }
+
+    @Test(expected = StashConfigurationException.class)
+    public void testGetHttpClientSettingsWithUnknownAllocator() throws StashConfigurationException {
+        when(config.getHttpAllocator()).thenReturn("unknown");
+        myFacade.getHttpClientSettings();
+    }
+
     @Test
     public void testGetStashURL() throws StashConfigurationException {
         when(config.getStashURL()).thenReturn("http://url");
@@ -338,6 +386,92 @@ public class StashRequestFacadeTest extends StashTest {
         verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
     }
 
+    @Test
+    public void testGetIssuesToComment() throws Exception {
+        when(diffReport.getType(FILE_PATH_2, 1)).thenReturn(null);
+
+        assertEquals(report, myFacade.getIssuesToComment(report, diffReport));
+
+        when(config.filterIssuesByLine()).thenReturn(true);
+        assertEquals(report.subList(0, 2), myFacade.getIssuesToComment(report, diffReport));
+        assertEquals(3, report.size());
+    }
+
+    @Test
+    public void testPostCommentPerIssueWithTemplate() throws Exception {
+        when(config.getIssueTemplate()).thenReturn("${message} on ${path}:${line}");
+        when(stashClient.getPullRequestComments(pr, FILE_PATH_1)).thenReturn(new StashCommentReport());
+        StashRequestFacade facade = new StashRequestFacade(config, new InputFileCache(), new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+        Issue issue = new ReportIssue("key", "component", FILE_PATH_1, RuleKey.of("foo", "rule1"), Severity.MAJOR, "message", 2);
+
+        facade.postCommentPerIssue(pr, Collections.singletonList(issue), diffReport, stashClient);
+
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, "message on path/to/file1:2", FILE_PATH_1, 2,
+                STASH_DIFF_TYPE);
+    }
+
+    @Test
+    public void testPostCommentPerIssueWithInvalidTemplate() throws Exception {
+        when(config.getIssueTemplate()).thenReturn("${unknown}");
+        when(stashClient.getPullRequestComments(pr, FILE_PATH_1)).thenReturn(new StashCommentReport());
+        StashRequestFacade facade = new StashRequestFacade(config, new InputFileCache(), new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+        Issue issue = new ReportIssue("key", "component", FILE_PATH_1, RuleKey.of("foo", "rule1"), Severity.MAJOR, "message", 2);
+
+        facade.postCommentPerIssue(pr, Collections.singletonList(issue), diffReport, stashClient);
+
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, MarkdownPrinter.printIssueMarkdown(issue, SONARQUBE_URL),
+                FILE_PATH_1, 2, STASH_DIFF_TYPE);
+    }
+
+    @Test
+    public void testPostCommentPerIssueGroupedByLine() throws Exception {
+        when(config.groupCommentsByLine()).thenReturn(true);
+        when(config.getTaskIssueSeverityThreshold()).thenReturn(Severity.MAJOR);
+        when(stashClient.getPullRequestComments(pr, FILE_PATH_1)).thenReturn(new StashCommentReport());
+        when(stashClient.postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString()))
+                .thenReturn(comment1);
+        StashRequestFacade facade = new StashRequestFacade(config, new InputFileCache(), new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+        Issue major = new ReportIssue("key1", "component", FILE_PATH_1, RuleKey.of("foo", "rule2"), Severity.MAJOR, "message2", 2);
+        Issue minor = new ReportIssue("key2", "component", FILE_PATH_1, RuleKey.of("foo", "rule3"), Severity.MINOR, "message3", 1);
+        Issue critical = new ReportIssue("key3", "component", FILE_PATH_1, RuleKey.of("foo", "rule1"), Severity.CRITICAL,
+                "message1", 2);
+
+        facade.postCommentPerIssue(pr, Arrays.asList(major, minor, critical), diffReport, stashClient);
+
+        // the issues of a line are listed by importance
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, "- " + MarkdownPrinter.printIssueMarkdown(critical, SONARQUBE_URL)
+                + "\n- " + MarkdownPrinter.printIssueMarkdown(major, SONARQUBE_URL), FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, MarkdownPrinter.printIssueMarkdown(minor, SONARQUBE_URL),
+                FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(2)).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+        verify(stashClient, times(1)).postTaskOnComment("message1", comment1.getId());
+        verify(stashClient, times(1)).postTaskOnComment("message2", comment1.getId());
+        verify(stashClient, never()).postTaskOnComment("message3", comment1.getId());
+    }
+
+    @Test
+    public void testPostCommentPerIssueGroupedByLineAlreadyPushed() throws Exception {
+        when(config.groupCommentsByLine()).thenReturn(true);
+        StashRequestFacade facade = new StashRequestFacade(config, new InputFileCache(), new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+        Issue major = new ReportIssue("key1", "component", FILE_PATH_1, RuleKey.of("foo", "rule2"), Severity.MAJOR, "message2", 2);
+        Issue critical = new ReportIssue("key2", "component", FILE_PATH_1, RuleKey.of("foo", "rule1"), Severity.CRITICAL,
+                "message1", 2);
+
+        // posted by a previous analysis, whatever the order of the issues
+        StashCommentReport comments = new StashCommentReport();
+        comments.add(new StashComment(1111, "- " + MarkdownPrinter.printIssueMarkdown(critical, SONARQUBE_URL) + "\n- "
+                + MarkdownPrinter.printIssueMarkdown(major, SONARQUBE_URL), FILE_PATH_1, (long) 2, stashUser, 0));
+        when(stashClient.getPullRequestComments(pr, FILE_PATH_1)).thenReturn(comments);
+
+        facade.postCommentPerIssue(pr, Arrays.asList(major, critical), diffReport, stashClient);
+
+        verify(stashClient, never()).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+    }
+
     @Test
     public void testPostCommentPerIssueWithNoStashCommentAlreadyPushed() throws Exception {
         when(stashCommentsReport1.contains(stashCommentMessage1, FILE_PATH_1, 1)).thenReturn(true);
@@ -351,16 +485,47 @@ public class StashRequestFacadeTest extends StashTest {
         verify(stashClient, times(0)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
     }
 
+    @Test
+    public void testPostCommentPerIssueWithCommentsFromDiff() throws Exception {
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+
+        List<StashComment> comments = new ArrayList<>();
+        comments.add(new StashComment(1111, stashCommentMessage1, FILE_PATH_1, (long) 1, stashUser, 0));
+        comments.add(new StashComment(3333, stashCommentMessage3, FILE_PATH_1, (long) 1, stashUser, 0));
+        when(diffReport.getComments()).thenReturn(comments);
+
+        myFacade.postCommentPerIssue(pr, report, diffReport, stashClient);
+
+        verify(stashClient, times(0)).postCommentLineOnPullRequest(pr, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+        verify(stashClient, never()).getPullRequestComments(eq(pr), anyString());
+    }
+
+    @Test
+    public void testPostCommentPerIssueWithNoCommentInDiff() throws Exception {
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+        when(diffReport.getComments()).thenReturn(new ArrayList<>());
+
+        myFacade.postCommentPerIssue(pr, report, diffReport, stashClient);
+
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+        verify(stashClient, never()).getPullRequestComments(eq(pr), anyString());
+    }
+
     @Test
     public void testPostSonarQubeReport() throws StashClientException {
         myFacade.postSonarQubeReport(pr, report, diffReport, stashClient);
-        verify(myFacade, times(1)).postCommentPerIssue(eq(pr), anyCollectionOf(Issue.class), eq(diffReport), eq(stashClient));
+        verify(myFacade, times(1)).postCommentPerIssue(eq(pr), anyCollectionOf(Issue.class), eq(diffReport),
+                anyCollectionOf(StashComment.class), eq(stashClient));
     }
 
     @Test
     public void testPostSonarQubeReportWithException() throws StashClientException {
         doThrow(new StashClientException("StashClientException for Test")).when(myFacade).postCommentPerIssue(eq(pr),
-                anyCollectionOf(Issue.class), eq(diffReport), eq(stashClient));
+                anyCollectionOf(Issue.class), eq(diffReport), anyCollectionOf(StashComment.class), eq(stashClient));
 
         try {
             myFacade.postSonarQubeReport(pr, report, diffReport, stashClient);
@@ -495,7 +660,8 @@ public class StashRequestFacadeTest extends StashTest {
 
     @Test
     public void testGetPullRequestDiffReport() throws Exception {
-        when(stashClient.getPullRequestDiffs(pr)).thenReturn(diffReport);
+        when(config.getDiffContextLines()).thenReturn(-1);
+        when(stashClient.getPullRequestDiffs(pr, false, -1, null, 0)).thenReturn(diffReport);
 
         StashDiffReport result = myFacade.getPullRequestDiffReport(pr, stashClient);
 
@@ -504,9 +670,178 @@ public class StashRequestFacadeTest extends StashTest {
         assertEquals(result.getLine(FILE_PATH_2, 1), 1);
     }
 
+    @Test
+    public void testGetPullRequestDiffReportWithComments() throws Exception {
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+        when(config.getDiffContextLines()).thenReturn(3);
+        when(stashClient.getPullRequestDiffs(pr, true, 3, null, 0)).thenReturn(diffReport);
+
+        assertEquals(diffReport, myFacade.getPullRequestDiffReport(pr, stashClient));
+    }
+
+    @Test
+    public void testIsDiffPerPath() {
+        assertFalse(myFacade.isDiffPerPath());
+
+        when(config.fetchDiffPerPath()).thenReturn(true);
+        assertTrue(myFacade.isDiffPerPath());
+
+        when(config.resetComments()).thenReturn(true);
+        assertFalse(myFacade.isDiffPerPath());
+
+        when(config.resetComments()).thenReturn(false);
+        when(config.reconcileComments()).thenReturn(true);
+        assertFalse(myFacade.isDiffPerPath());
+    }
+
+    @Test
+    public void testGetIssuePathFromCache() {
+        InputFile inputFile = mock(InputFile.class);
+        InputFileCache inputFileCache = new InputFileCache();
+        inputFileCache.putInputFile("component", inputFile, "module/path");
+
+        StashRequestFacade facade = new StashRequestFacade(config, inputFileCache, new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+
+        Issue issue = new DefaultIssue().setComponentKey("component");
+        assertEquals("module/path", facade.getIssuePath(issue));
+        assertNull(facade.getIssuePath(new DefaultIssue().setComponentKey("unknown")));
+        assertEquals("report/path", facade.getIssuePath(
+                new ReportIssue("key", "unknown", "report/path", RuleKey.of("repo", "rule"), Severity.MAJOR, "message", 1)));
+        verify(inputFile, never()).file();
+    }
+
+    @Test
+    public void testGetIssuePaths() {
+        ((DefaultIssue) report.get(0)).setNew(true);
+        ((DefaultIssue) report.get(1)).setNew(true);
+        ((DefaultIssue) report.get(2)).setNew(false);
+        Issue issueWithoutPath = new DefaultIssue().setKey("key4").setNew(true);
+        when(myFacade.getIssuePath(issueWithoutPath)).thenReturn(null);
+
+        List<Issue> issues = new ArrayList<>(report);
+        issues.add(issueWithoutPath);
+        ProjectIssues projectIssues = mock(ProjectIssues.class);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        assertEquals(Collections.singleton(FILE_PATH_1), myFacade.getIssuePaths(projectIssues));
+    }
+
+    @Test
+    public void testGetIssuePathsSkipsUnchangedFiles() {
+        InputFileCache inputFileCache = new InputFileCache();
+        inputFileCache.putInputFile("changed", mockInputFile(InputFile.Status.CHANGED), "changed/path");
+        inputFileCache.putInputFile("added", mockInputFile(InputFile.Status.ADDED), "added/path");
+        inputFileCache.putInputFile("unchanged", mockInputFile(InputFile.Status.SAME), "unchanged/path");
+        inputFileCache.putInputFile("unknown", mockInputFile(null), "unknown/path");
+        StashRequestFacade facade = new StashRequestFacade(config, inputFileCache, new StashProjectBuilder(),
+                mock(CoverageProjectStore.class));
+
+        List<Issue> issues = new ArrayList<>();
+        for (String componentKey : Arrays.asList("changed", "added", "unchanged", "unknown")) {
+            issues.add(new DefaultIssue().setComponentKey(componentKey).setNew(true));
+        }
+        issues.add(new ReportIssue("key", "unchanged", "report/path", RuleKey.of("repo", "rule"), Severity.MAJOR, "message", 1));
+        ProjectIssues projectIssues = mock(ProjectIssues.class);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        assertEquals(new HashSet<>(Arrays.asList("added/path", "changed/path", "report/path", "unknown/path")),
+                facade.getIssuePaths(projectIssues));
+    }
+
+    private static InputFile mockInputFile(InputFile.Status status) {
+        InputFile inputFile = mock(InputFile.class);
+        when(inputFile.status()).thenReturn(status);
+        return inputFile;
+    }
+
+    @Test
+    public void testGetPullRequestDiffReportPerPath() throws Exception {
+        when(config.fetchDiffPerPath()).thenReturn(true);
+        StashDiffReport diffReport1 = new StashDiffReport();
+        diffReport1.add(new StashDiff("ADDED", FILE_PATH_1, 0, 1));
+        StashDiffReport diffReport2 = new StashDiffReport();
+        diffReport2.add(new StashDiff("ADDED", FILE_PATH_2, 0, 1));
+        when(stashClient.getPullRequestDiffs(pr, FILE_PATH_1, false, 0)).thenReturn(diffReport1);
+        when(stashClient.getPullRequestDiffs(pr, FILE_PATH_2, false, 0)).thenReturn(diffReport2);
+
+        StashDiffReport result = myFacade.getPullRequestDiffReport(pr, Arrays.asList(FILE_PATH_1, FILE_PATH_2), stashClient);
+
+        assertEquals(2, result.getDiffs().size());
+        assertTrue(result.hasPath(FILE_PATH_1));
+        assertTrue(result.hasPath(FILE_PATH_2));
+        verify(stashClient, never()).getPullRequestDiffs(eq(pr), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testGetPullRequestDiffReportPerPathWithException() throws Exception {
+        when(config.fetchDiffPerPath()).thenReturn(true);
+        when(stashClient.getPullRequestDiffs(pr, FILE_PATH_1, false, 0)).thenReturn(new StashDiffReport());
+        when(stashClient.getPullRequestDiffs(pr, FILE_PATH_2, false, 0))
+                .thenThrow(new StashClientException("StashClientException for Test"));
+
+        assertNull(myFacade.getPullRequestDiffReport(pr, Arrays.asList(FILE_PATH_1, FILE_PATH_2), stashClient));
+    }
+
+    @Test
+    public void testGetPullRequestDiffReportOfPaths() throws Exception {
+        Set<String> paths = new HashSet<>(Arrays.asList(FILE_PATH_1, FILE_PATH_2));
+        when(config.getDiffMemoryBudget()).thenReturn((long) 1024);
+        when(stashClient.getPullRequestDiffs(pr, false, 0, paths, 1024)).thenReturn(diffReport);
+
+        assertEquals(diffReport, myFacade.getPullRequestDiffReport(pr, Arrays.asList(FILE_PATH_1, FILE_PATH_2), stashClient));
+        verify(stashClient, never()).getPullRequestDiffs(eq(pr), anyString(), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testGetPullRequestDiffReportOfPathsWithException() throws Exception {
+        when(stashClient.getPullRequestDiffs(eq(pr), anyBoolean(), anyInt(), anySetOf(String.class), anyLong()))
+                .thenThrow(new StashClientException("StashClientException for Test"));
+
+        assertNull(myFacade.getPullRequestDiffReport(pr, Arrays.asList(FILE_PATH_1), stashClient));
+    }
+
+    @Test
+    public void testIsDiffOfIssuePathsOnly() {
+        assertTrue(myFacade.isDiffOfIssuePathsOnly());
+
+        when(config.resetComments()).thenReturn(true);
+        assertFalse(myFacade.isDiffOfIssuePathsOnly());
+
+        when(config.resetComments()).thenReturn(false);
+        when(config.reconcileComments()).thenReturn(true);
+        assertFalse(myFacade.isDiffOfIssuePathsOnly());
+    }
+
+    @Test
+    public void testGetPullRequestDiffReportWithoutPath() throws Exception {
+        StashDiffReport result = myFacade.getPullRequestDiffReport(pr, Collections.<String>emptyList(), stashClient);
+
+        assertTrue(result.getDiffs().isEmpty());
+        verify(stashClient, never()).getPullRequestDiffs(eq(pr), anyString(), anyBoolean(), anyInt());
+        verify(stashClient, never()).getPullRequestDiffs(eq(pr), anyBoolean(), anyInt(), anySetOf(String.class), anyLong());
+    }
+
+    @Test
+    public void testIsDiffWithComments() {
+        assertFalse(myFacade.isDiffWithComments());
+
+        when(config.resetComments()).thenReturn(true);
+        assertTrue(myFacade.isDiffWithComments());
+
+        when(config.resetComments()).thenReturn(false);
+        when(config.reconcileComments()).thenReturn(true);
+        assertTrue(myFacade.isDiffWithComments());
+
+        when(config.reconcileComments()).thenReturn(false);
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+        assertTrue(myFacade.isDiffWithComments());
+    }
+
     @Test
     public void testGetPullRequestDiffReportWithException() throws Exception {
-        doThrow(new StashClientException("StashClientException for Test")).when(stashClient).getPullRequestDiffs(pr);
+        doThrow(new StashClientException("StashClientException for Test")).when(stashClient).getPullRequestDiffs(eq(pr),
+                anyBoolean(), anyInt(), anySetOf(String.class), anyLong());
 
         StashDiffReport result = myFacade.getPullRequestDiffReport(pr, stashClient);
         assertEquals(result, null);
@@ -520,6 +855,176 @@ public class StashRequestFacadeTest extends StashTest {
         verify(stashClient, times(3)).deletePullRequestComment(Mockito.eq(pr), (StashComment) Mockito.anyObject());
     }
 
+    @Test
+    public void testResetCommentsConcurrently() throws Exception {
+        when(config.getRequestConcurrency()).thenReturn(3);
+
+        CountDownLatch allStarted = new CountDownLatch(3);
+        Mockito.doAnswer(invocation -> {
+            allStarted.countDown();
+            if (!allStarted.await(5, TimeUnit.SECONDS)) {
+                throw new StashClientException("Comments not deleted concurrently");
+            }
+            return null;
+        }).when(stashClient).deletePullRequestComment(eq(pr), (StashComment) Mockito.anyObject());
+
+        myFacade.resetComments(pr, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(3)).deleteTaskOnComment((StashTask) Mockito.anyObject());
+        verify(stashClient, times(3)).deletePullRequestComment(Mockito.eq(pr), (StashComment) Mockito.anyObject());
+    }
+
+    @Test
+    public void testResetCommentsWithFailure() throws Exception {
+        doThrow(new StashClientException("StashClientException for Test")).when(stashClient).deletePullRequestComment(pr,
+                comment2);
+
+        myFacade.resetComments(pr, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(3)).deletePullRequestComment(Mockito.eq(pr), (StashComment) Mockito.anyObject());
+    }
+
+    @Test
+    public void testResetCommentsDeletesTasksBeforeComment() throws Exception {
+        StashTask task = comment1.getTasks().get(0);
+        doThrow(new StashClientException("StashClientException for Test")).when(stashClient).deleteTaskOnComment(task);
+
+        myFacade.resetComments(pr, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(0)).deletePullRequestComment(pr, comment1);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment2);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment3);
+    }
+
+    @Test
+    public void testResetCommentsThenPostCommentsFromDiff() throws Exception {
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+        primeCommentsForReconciliation();
+
+        List<StashComment> deletedComments = myFacade.resetComments(pr, diffReport, stashUser, stashClient);
+        myFacade.postSonarQubeReport(pr, report, diffReport, deletedComments, stashClient);
+
+        assertEquals(Arrays.asList(comment1, comment2, comment3), deletedComments);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    }
+
+    @Test
+    public void testResetCommentsThenPostCommentsFromDiffWithNotDeletableTasks() throws Exception {
+        when(config.fetchCommentsPerFile()).thenReturn(false);
+        primeCommentsForReconciliation();
+        when(comment1.containsPermanentTasks()).thenReturn(true);
+
+        List<StashComment> deletedComments = myFacade.resetComments(pr, diffReport, stashUser, stashClient);
+        myFacade.postSonarQubeReport(pr, report, diffReport, deletedComments, stashClient);
+
+        assertEquals(Arrays.asList(comment2, comment3), deletedComments);
+        verify(stashClient, times(0)).postCommentLineOnPullRequest(pr, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    }
+
+    @Test
+    public void testReconcileComments() throws Exception {
+        primeCommentsForReconciliation();
+
+        myFacade.reconcileComments(pr, report, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(0)).deletePullRequestComment(pr, comment1);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment2);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment3);
+        verify(stashClient, times(0)).postCommentLineOnPullRequest(pr, stashCommentMessage1, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+    }
+
+    @Test
+    public void testReconcileCommentsGroupedByLine() throws Exception {
+        when(config.groupCommentsByLine()).thenReturn(true);
+        Issue issue4 = new DefaultIssue().setKey("key4").setSeverity(Severity.MAJOR).setMessage("message4")
+                .setRuleKey(RuleKey.of("foo", "rule4")).setLine(1);
+        when(myFacade.getIssuePath(issue4)).thenReturn(FILE_PATH_1);
+        report.add(issue4);
+        primeCommentsForReconciliation();
+        String groupedMessage = "- " + stashCommentMessage1 + "\n- " + MarkdownPrinter.printIssueMarkdown(issue4, SONARQUBE_URL);
+        when(comment1.getMessage()).thenReturn(groupedMessage);
+
+        myFacade.reconcileComments(pr, report, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(0)).deletePullRequestComment(pr, comment1);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment2);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment3);
+        verify(stashClient, times(0)).postCommentLineOnPullRequest(pr, groupedMessage, FILE_PATH_1, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage3, FILE_PATH_2, 1, STASH_DIFF_TYPE);
+        verify(stashClient, times(2)).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+    }
+
+    @Test
+    public void testReconcileCommentsWithIssueOutsideDiff() throws Exception {
+        primeCommentsForReconciliation();
+        when(diffReport.getType(FILE_PATH_2, 1)).thenReturn(null);
+
+        myFacade.reconcileComments(pr, report, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(pr, stashCommentMessage2, FILE_PATH_1, 2, STASH_DIFF_TYPE);
+        verify(stashClient, times(1)).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+    }
+
+    @Test
+    public void testReconcileCommentsWithNotDeletableTasks() throws Exception {
+        primeCommentsForReconciliation();
+        when(comment2.containsPermanentTasks()).thenReturn(true);
+
+        myFacade.reconcileComments(pr, report, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(0)).deletePullRequestComment(pr, comment2);
+        verify(stashClient, times(1)).deletePullRequestComment(pr, comment3);
+    }
+
+    @Test
+    public void testReconcileCommentsWithoutIssues() throws Exception {
+        primeCommentsForReconciliation();
+
+        myFacade.reconcileComments(pr, new ArrayList<Issue>(), diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(3)).deletePullRequestComment(eq(pr), (StashComment) Mockito.anyObject());
+        verify(stashClient, times(0)).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+    }
+
+    @Test
+    public void testReconcileCommentsKeepsOtherUsersComments() throws Exception {
+        StashUser stashUser2 = mock(StashUser.class);
+        when(stashUser2.getId()).thenReturn((long) 4321);
+        when(comment1.getAuthor()).thenReturn(stashUser2);
+        when(comment2.getAuthor()).thenReturn(stashUser2);
+        when(comment3.getAuthor()).thenReturn(stashUser2);
+
+        myFacade.reconcileComments(pr, report, diffReport, stashUser, stashClient);
+
+        verify(stashClient, times(0)).deletePullRequestComment(eq(pr), (StashComment) Mockito.anyObject());
+        verify(stashClient, times(3)).postCommentLineOnPullRequest(eq(pr), anyString(), anyString(), anyLong(), anyString());
+    }
+
+    /*
+     * comment1 matches issue1, comment2 is outdated and comment3 is not linked
+     * to any issue.
+     */
+    private void primeCommentsForReconciliation() {
+        when(comment1.getPath()).thenReturn(FILE_PATH_1);
+        when(comment1.getLine()).thenReturn((long) 1);
+        when(comment1.getMessage()).thenReturn(stashCommentMessage1);
+
+        when(comment2.getPath()).thenReturn(FILE_PATH_1);
+        when(comment2.getLine()).thenReturn((long) 2);
+        when(comment2.getMessage()).thenReturn("outdated message");
+
+        when(comment3.getPath()).thenReturn(FILE_PATH_2);
+        when(comment3.getLine()).thenReturn((long) 2);
+        when(comment3.getMessage()).thenReturn(stashCommentMessage3);
+    }
+
     @Test
     public void testResetCommentsWithNotDeletableTasks() throws Exception {
         when(comment1.containsPermanentTasks()).thenReturn(true);
@@ -583,6 +1088,7 @@ public class StashRequestFacadeTest extends StashTest {
     public void testAddPullRequestReviewer() throws Exception {
         ArrayList<StashUser> reviewers = new ArrayList<>();
         StashUser stashUser = mock(StashUser.class);
+        when(stashUser.getSlug()).thenReturn(STASH_USER);
         reviewers.add(stashUser);
 
         StashPullRequest pullRequest = mock(StashPullRequest.class);
@@ -590,17 +1096,17 @@ public class StashRequestFacadeTest extends StashTest {
         when(pullRequest.getVersion()).thenReturn((long) 1);
 
         when(stashClient.getPullRequest(pr)).thenReturn(pullRequest);
-        when(stashClient.getUser(STASH_USER)).thenReturn(stashUser);
-
-        myFacade.addPullRequestReviewer(pr, STASH_USER, stashClient);
+        myFacade.addPullRequestReviewer(pr, stashUser, stashClient);
 
         verify(stashClient, times(1)).addPullRequestReviewer(pr, 1, reviewers);
+        verify(stashClient, never()).getUser(anyString());
     }
 
     @Test
     public void testAddPullRequestReviewerWithReviewerAlreadyAdded() throws Exception {
         ArrayList<StashUser> reviewers = new ArrayList<>();
         StashUser stashUser = mock(StashUser.class);
+        when(stashUser.getSlug()).thenReturn(STASH_USER);
         reviewers.add(stashUser);
 
         StashPullRequest pullRequest = mock(StashPullRequest.class);
@@ -608,13 +1114,67 @@ public class StashRequestFacadeTest extends StashTest {
         when(pullRequest.getVersion()).thenReturn((long) 1);
 
         when(stashClient.getPullRequest(pr)).thenReturn(pullRequest);
-        when(stashClient.getUser(STASH_USER)).thenReturn(stashUser);
-
-        myFacade.addPullRequestReviewer(pr, STASH_USER, stashClient);
+        myFacade.addPullRequestReviewer(pr, stashUser, stashClient);
 
         verify(stashClient, times(0)).addPullRequestReviewer(pr, 1, reviewers);
     }
 
+    @Test
+    public void testGetStashPullRequest() throws Exception {
+        StashPullRequest pullRequest = mock(StashPullRequest.class);
+        when(stashClient.getPullRequest(pr)).thenReturn(pullRequest);
+
+        assertEquals(pullRequest, myFacade.getStashPullRequest(pr, stashClient));
+    }
+
+    @Test
+    public void testGetStashPullRequestWithException() throws Exception {
+        when(stashClient.getPullRequest(pr)).thenThrow(new StashClientException("StashClientException for Test"));
+
+        assertNull(myFacade.getStashPullRequest(pr, stashClient));
+    }
+
+    @Test
+    public void testAddPullRequestReviewerWithPrefetchedPullRequest() throws Exception {
+        ArrayList<StashUser> reviewers = new ArrayList<>();
+        StashUser stashUser = mock(StashUser.class);
+        when(stashUser.getSlug()).thenReturn(STASH_USER);
+        reviewers.add(stashUser);
+
+        StashPullRequest pullRequest = mock(StashPullRequest.class);
+        when(pullRequest.getReviewer(STASH_USER)).thenReturn(null);
+        when(pullRequest.getVersion()).thenReturn((long) 1);
+
+        myFacade.addPullRequestReviewer(pr, stashUser, pullRequest, stashClient);
+
+        verify(stashClient, times(0)).getPullRequest(pr);
+        verify(stashClient, times(1)).addPullRequestReviewer(pr, 1, reviewers);
+    }
+
+    @Test
+    public void testAddPullRequestReviewerWithOutdatedPrefetchedPullRequest() throws Exception {
+        ArrayList<StashUser> reviewers = new ArrayList<>();
+        StashUser stashUser = mock(StashUser.class);
+        when(stashUser.getSlug()).thenReturn(STASH_USER);
+        reviewers.add(stashUser);
+
+        StashPullRequest outdatedPullRequest = mock(StashPullRequest.class);
+        when(outdatedPullRequest.getReviewer(STASH_USER)).thenReturn(null);
+        when(outdatedPullRequest.getVersion()).thenReturn((long) 1);
+
+        StashPullRequest pullRequest = mock(StashPullRequest.class);
+        when(pullRequest.getReviewer(STASH_USER)).thenReturn(null);
+        when(pullRequest.getVersion()).thenReturn((long) 2);
+
+        when(stashClient.getPullRequest(pr)).thenReturn(pullRequest);
+        doThrow(new StashClientException("conflict")).when(stashClient).addPullRequestReviewer(pr, 1, reviewers);
+
+        myFacade.addPullRequestReviewer(pr, stashUser, outdatedPullRequest, stashClient);
+
+        verify(stashClient, times(1)).addPullRequestReviewer(pr, 1, reviewers);
+        verify(stashClient, times(1)).addPullRequestReviewer(pr, 2, reviewers);
+    }
+
     @Test
     public void testGetReportedSeverities() {
         when(config.getTaskIssueSeverityThreshold()).thenReturn(Severity.INFO);
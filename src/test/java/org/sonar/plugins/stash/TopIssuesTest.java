@@ -0,0 +1,48 @@
+package org.sonar.plugins.stash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
+import org.sonar.plugins.stash.fixtures.DummyIssuePathResolver;
+
+public class TopIssuesTest {
+
+    DummyIssuePathResolver issuePathResolver = new DummyIssuePathResolver();
+
+    Issue minor = new DefaultIssue().setKey("minor").setSeverity(Severity.MINOR).setRuleKey(RuleKey.of("repo", "a"));
+    Issue majorB = new DefaultIssue().setKey("majorB").setSeverity(Severity.MAJOR).setRuleKey(RuleKey.of("repo", "b"));
+    Issue majorA2 = new DefaultIssue().setKey("majorA2").setSeverity(Severity.MAJOR).setRuleKey(RuleKey.of("repo", "a"));
+    Issue majorA1 = new DefaultIssue().setKey("majorA1").setSeverity(Severity.MAJOR).setRuleKey(RuleKey.of("repo", "a"));
+    Issue blocker = new DefaultIssue().setKey("blocker").setSeverity(Severity.BLOCKER).setRuleKey(RuleKey.of("repo", "z"));
+
+    List<Issue> issues = Arrays.asList(minor, majorB, majorA2, blocker, majorA1);
+
+    @Test
+    public void testGetIssues() {
+        issuePathResolver.add(majorA1, "path1");
+        issuePathResolver.add(majorA2, "path2");
+
+        assertEquals(Arrays.asList(blocker, majorA1, majorA2), getTopIssues(3));
+        assertEquals(Arrays.asList(blocker, majorA1, majorA2, majorB, minor), getTopIssues(10));
+    }
+
+    @Test
+    public void testGetIssuesWithoutAnyIssue() {
+        assertEquals(Collections.emptyList(), getTopIssues(0));
+        assertEquals(Collections.emptyList(), new TopIssues(3, issuePathResolver).getIssues());
+    }
+
+    private List<Issue> getTopIssues(int count) {
+        TopIssues topIssues = new TopIssues(count, issuePathResolver);
+        issues.forEach(topIssues);
+        return topIssues.getIssues();
+    }
+}
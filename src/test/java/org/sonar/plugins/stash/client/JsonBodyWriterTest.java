@@ -0,0 +1,101 @@
+package org.sonar.plugins.stash.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JsonArray;
+import org.json.simple.JsonObject;
+import org.json.simple.Jsoner;
+import org.junit.Test;
+
+public class JsonBodyWriterTest {
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    @Test
+    public void testWriteObject() throws Exception {
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().beginObject();
+        writer.name("text").value("message");
+        writer.name("anchor").beginObject().name("line").value(5L).name("path").value((String) null).endObject();
+        writer.name("reviewers").beginArray();
+        writer.beginObject().name("id").value(-12L).endObject();
+        writer.beginObject().name("id").value(Long.MIN_VALUE).endObject();
+        writer.endArray();
+        writer.name("empty").beginArray().endArray();
+        writer.name("version").value(Long.MAX_VALUE).endObject();
+
+        assertEquals("{\"text\":\"message\",\"anchor\":{\"line\":5,\"path\":null},\"reviewers\":[{\"id\":-12},"
+                + "{\"id\":-9223372036854775808}],\"empty\":[],\"version\":9223372036854775807}",
+                toString(writer.toByteBuffer()));
+    }
+
+    @Test
+    public void testWriteEscapedString() throws Exception {
+        String text = "*MAJOR* - \"quoted\" \\path\\ [[rule](http://host/rule?key=a:b)]\n"
+                + "tab\tcontrol\u0001\u001f accents \u00e9\u00e8 euro \u20ac emoji \ud83d\ude00";
+
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().beginObject().name("text").value(text).endObject();
+
+        String json = toString(writer.toByteBuffer());
+        assertEquals("{\"text\":\"*MAJOR* - \\\"quoted\\\" \\\\path\\\\ [[rule](http://host/rule?key=a:b)]\\n"
+                + "tab\\tcontrol\\u0001\\u001f accents \u00e9\u00e8 euro \u20ac emoji \ud83d\ude00\"}", json);
+        assertEquals(text, ((JsonObject) Jsoner.deserialize(json)).get("text"));
+        assertEquals(json, writer.toString());
+    }
+
+    @Test
+    public void testWriteMalformedString() throws Exception {
+        String text = "lone \ud83d surrogate \ude00";
+
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().value(text);
+
+        assertEquals(ByteBuffer.wrap(("\"" + text + "\"").getBytes(StandardCharsets.UTF_8)), writer.toByteBuffer());
+    }
+
+    @Test
+    public void testWriteLargeString() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("\u00e9\"");
+        }
+
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().beginArray().value(text.toString()).endArray();
+
+        JsonArray json = (JsonArray) Jsoner.deserialize(writer.toString());
+        assertEquals(text.toString(), json.get(0));
+    }
+
+    @Test
+    public void testForRequestReusesWriter() {
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().beginObject().name("text").value("first").endObject();
+        ByteBuffer first = writer.toByteBuffer();
+
+        assertSame(writer, JsonBodyWriter.forRequest());
+        writer.beginObject().endObject();
+        assertEquals("{}", writer.toString());
+        assertSame(first.array(), writer.toByteBuffer().array());
+
+        writer.discardBuffer();
+        assertNotSame(first.array(), JsonBodyWriter.forRequest().toByteBuffer().array());
+        assertEquals("", writer.toString());
+    }
+
+    @Test
+    public void testForRequestReleasesLargeBuffer() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append('a');
+        }
+        JsonBodyWriter writer = JsonBodyWriter.forRequest().value(text.toString());
+        byte[] large = writer.toByteBuffer().array();
+
+        assertNotSame(large, JsonBodyWriter.forRequest().toByteBuffer().array());
+        assertEquals(4 * 1024, writer.toByteBuffer().array().length);
+    }
+}
@@ -0,0 +1,75 @@
+package org.sonar.plugins.stash.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.plugins.stash.exceptions.StashClientException;
+import org.sonar.plugins.stash.issue.StashUser;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+
+/**
+ * Compares the throughput of the Stash client for the different transport
+ * and allocator settings. Run the footprint comparison with "-prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StashClientBenchmark {
+
+    private static final String USER = "{\"name\":\"SonarQube\", \"email\":\"sq@email.com\", \"id\":1, \"slug\":\"sonarqube\"}";
+
+    @Param({"false", "true"})
+    public boolean nativeTransport;
+
+    @Param({"DEFAULT", "POOLED", "UNPOOLED"})
+    public String allocator;
+
+    @Param({"0", "1"})
+    public int ioThreads;
+
+    private WireMockServer server;
+    private StashClient client;
+
+    @Setup
+    public void setUp() {
+        server = new WireMockServer(new WireMockConfiguration().dynamicPort());
+        server.start();
+        server.stubFor(any(anyUrl()).willReturn(aResponse().withHeader("Content-Type", "application/json").withBody(USER)));
+
+        HttpClientSettings settings = HttpClientSettings.builder().setNativeTransport(nativeTransport)
+                .setIoThreads(ioThreads).setAllocator(HttpClientSettings.Allocator.valueOf(allocator)).build();
+        client = new StashClient("http://127.0.0.1:" + server.port(), new StashCredentials("login", "password"), 10000,
+                "benchmark", settings);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public StashUser getUser() throws StashClientException {
+        return client.getUser("sonarqube");
+    }
+}
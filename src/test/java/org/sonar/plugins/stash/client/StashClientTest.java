@@ -1,14 +1,17 @@
 package org.sonar.plugins.stash.client;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
 import static com.github.tomakehurst.wiremock.client.WireMock.any;
 import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
 import static com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalToJson;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
 import static java.net.HttpURLConnection.HTTP_CREATED;
@@ -24,6 +27,8 @@ import static org.junit.Assert.assertTrue;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
@@ -70,6 +75,7 @@ public class StashClientTest extends StashTest {
         wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HttpURLConnection.HTTP_CREATED)));
 
         client.postCommentOnPullRequest(pr, "Report");
+        wireMock.verify(postRequestedFor(anyUrl()).withRequestBody(equalToJson("{\"text\":\"Report\"}")));
     }
 
     @Test
@@ -187,6 +193,46 @@ public class StashClientTest extends StashTest {
         assertEquals(report.getDiffs().size(), 4);
     }
 
+    @Test
+    public void testGetPullRequestDiffsWithoutComments() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_OK).withBody(DiffReportSample.baseReport)));
+
+        client.getPullRequestDiffs(pr, false, 3);
+
+        wireMock.verify(getRequestedFor(urlPathMatching(".*/diff$")).withQueryParam("withComments", equalTo("false"))
+                .withQueryParam("contextLines", equalTo("3")));
+    }
+
+    @Test
+    public void testGetPullRequestDiffsWithDefaultContextLines() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_OK).withBody(DiffReportSample.baseReport)));
+
+        StashDiffReport report = client.getPullRequestDiffsAsync(pr, true, -1, 0).get();
+        assertEquals(4, report.getDiffs().size());
+
+        wireMock.verify(getRequestedFor(urlPathMatching(".*/diff$")).withQueryParam("withComments", equalTo("true"))
+                .withQueryParam("contextLines", absent()));
+    }
+
+    @Test
+    public void testGetPullRequestDiffsWithPathFilter() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_OK).withBody(DiffReportSample.baseReport)));
+
+        StashDiffReport report = client.getPullRequestDiffs(pr, true, -1, Collections.singleton("unknown/path"), 0);
+        assertTrue(report.getDiffs().isEmpty());
+    }
+
+    @Test
+    public void testGetPullRequestDiffsOfPath() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_OK).withBody(DiffReportSample.baseReport)));
+
+        client.getPullRequestDiffs(pr, "src/main/my file.java", false, -1);
+
+        wireMock.verify(getRequestedFor(
+                urlEqualTo("/rest/api/1.0/projects/Project/repos/Repository/pull-requests/1/diff/src/main/my%20file.java"
+                        + "?withComments=false")));
+    }
+
     @Test(expected = StashClientException.class)
     public void testGetPullRequestDiffsWithMalformedTasks() throws Exception {
         wireMock.stubFor(any(anyUrl())
@@ -216,6 +262,19 @@ public class StashClientTest extends StashTest {
 
         StashComment comment = client.postCommentLineOnPullRequest(pr, "message", "path", 5, "type");
         assertEquals(1234, comment.getId());
+        wireMock.verify(postRequestedFor(anyUrl()).withRequestBody(equalToJson(
+                "{\"text\":\"message\", \"anchor\": {\"line\":5, \"lineType\":\"type\", \"fileType\":\"TO\", \"path\":\"path\"}}")));
+    }
+
+    @Test
+    public void testPostCommentLineOnPullRequestEscapesBody() throws Exception {
+        String stashJsonComment = "{\"id\":1234, \"text\":\"message\", \"anchor\": {\"path\":\"path\"},"
+                + "\"author\": {\"id\":1, \"name\":\"SonarQube\", \"slug\":\"sonarqube\", \"email\":\"sq@email.com\"}, \"version\": 0}";
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_CREATED).withBody(stashJsonComment)));
+
+        client.postCommentLineOnPullRequest(pr, "*MAJOR* - \"a\\b\"\n\u00e9", "dir/p\u00e4th", 0, "CONTEXT");
+        wireMock.verify(postRequestedFor(anyUrl()).withRequestBody(equalToJson(
+                "{\"text\":\"*MAJOR* - \\\"a\\\\b\\\"\\n\u00e9\", \"anchor\": {\"fileType\":\"FROM\", \"path\":\"dir/p\u00e4th\"}}")));
     }
 
     @Test
@@ -251,6 +310,22 @@ public class StashClientTest extends StashTest {
 
     }
 
+    @Test
+    public void testGetUserWithTunedHttpClient() throws Exception {
+        String jsonUser = "{\"name\":\"SonarQube\", \"email\":\"sq@email.com\", \"id\":1, \"slug\":\"sonarqube\"}";
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withBody(jsonUser)));
+
+        for (HttpClientSettings.Allocator allocator : HttpClientSettings.Allocator.values()) {
+            HttpClientSettings settings = HttpClientSettings.builder().setNativeTransport(true).setIoThreads(1)
+                    .setAllocator(allocator).setThreadPoolName("stash-test").build();
+
+            try (StashClient tunedClient = new StashClient("http://127.0.0.1:" + wireMock.port(),
+                    new StashCredentials("login", "password"), errorTimeout * 10, "dummyVersion", settings)) {
+                assertEquals("sonarqube", tunedClient.getUser("sonarqube").getSlug());
+            }
+        }
+    }
+
     @Test(expected = StashClientException.class)
     public void testGetUserWithWrongHTTPResult() throws Exception {
         wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_FORBIDDEN)));
@@ -278,6 +353,43 @@ public class StashClientTest extends StashTest {
         assertEquals(pullRequest.getVersion(), 1);
     }
 
+    @Test
+    public void testGetPullRequestAsync() throws Exception {
+        String jsonPullRequest = "{\"version\": 1, \"title\":\"PR-Test\", \"description\":\"PR-test\", \"reviewers\": []}";
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withBody(jsonPullRequest)));
+
+        StashPullRequest pullRequest = client.getPullRequestAsync(pr).get();
+
+        assertEquals(pullRequest.getId(), 1);
+        assertEquals(pullRequest.getVersion(), 1);
+    }
+
+    @Test
+    public void testGetUserAsyncWithWrongHTTPResult() throws Exception {
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_FORBIDDEN)));
+
+        try {
+            client.getUserAsync("sonarqube").get();
+            Assert.fail("Wrong HTTP result not detected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StashClientException);
+        }
+    }
+
+    @Test
+    public void testGetUserAsyncWithTimeout() throws Exception {
+        // the request timeout of the HTTP client is less accurate than the
+        // synchronous wait
+        wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withFixedDelay(timeout * 5)));
+
+        try {
+            client.getUserAsync("sonarqube").get();
+            Assert.fail("Timeout not detected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StashClientException);
+        }
+    }
+
     @Test
     public void testApprovePullRequest() throws Exception {
         wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse()));
@@ -300,7 +412,9 @@ public class StashClientTest extends StashTest {
         reviewers.add(testUser);
 
         client.addPullRequestReviewer(pr, 1L, reviewers);
-        wireMock.verify(putRequestedFor(anyUrl()));
+        wireMock.verify(putRequestedFor(anyUrl()).withRequestBody(
+                equalToJson("{\"reviewers\": [{\"user\": {\"name\":\"userName\"}}], \"id\":" + pr.pullRequestId()
+                        + ", \"version\":1}")));
     }
 
     @Test
@@ -314,7 +428,8 @@ public class StashClientTest extends StashTest {
     public void testPostTaskOnComment() throws Exception {
         wireMock.stubFor(any(anyUrl()).willReturn(aJsonResponse().withStatus(HTTP_CREATED)));
         client.postTaskOnComment("message", 1111L);
-        wireMock.verify(postRequestedFor(anyUrl()));
+        wireMock.verify(postRequestedFor(anyUrl())
+                .withRequestBody(equalToJson("{\"anchor\": {\"id\":1111, \"type\":\"COMMENT\"}, \"text\":\"message\"}")));
     }
 
     @Test
@@ -1,8 +1,30 @@
 package org.sonar.plugins.stash.coverage;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
 
 import org.junit.Test;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.rule.ActiveRules;
+import org.sonar.api.component.ResourcePerspectives;
+import org.sonar.api.issue.Issuable;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Resource;
+import org.sonar.plugins.stash.InputFileCache;
+import org.sonar.plugins.stash.StashPlugin;
+import org.sonar.plugins.stash.StashPluginConfiguration;
+import org.sonar.plugins.stash.StashPrefetcher;
+import org.sonar.plugins.stash.issue.StashDiffReport;
 
 public class CoverageSensorTest {
     public static String formatIssueMessage(String path, double coverage, double previousCoverage) {
@@ -16,4 +38,42 @@ public class CoverageSensorTest {
                 CoverageSensorTest.formatIssueMessage("path/code/coverage", 7.65, 50.29));
 
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFileOutOfDiffIsSkipped() {
+        InputFile inputFile = mock(InputFile.class);
+        FileSystem fileSystem = mock(FileSystem.class, RETURNS_DEEP_STUBS);
+        when(fileSystem.inputFiles(any())).thenReturn(Collections.singletonList(inputFile));
+
+        Resource resource = mock(Resource.class);
+        when(resource.getEffectiveKey()).thenReturn("project:path/to/file");
+        SensorContext context = mock(SensorContext.class);
+        when(context.getResource(inputFile)).thenReturn(resource);
+        Measure<Integer> linesToCover = new Measure<>(CoreMetrics.LINES_TO_COVER, 10d);
+        Measure<Integer> uncoveredLines = new Measure<>(CoreMetrics.UNCOVERED_LINES, 10d);
+        when(context.getMeasure(resource, CoreMetrics.LINES_TO_COVER)).thenReturn(linesToCover);
+        when(context.getMeasure(resource, CoreMetrics.UNCOVERED_LINES)).thenReturn(uncoveredLines);
+
+        StashPluginConfiguration config = mock(StashPluginConfiguration.class);
+        when(config.getSonarQubeURL()).thenReturn("http://127.0.0.1:1");
+
+        StashPrefetcher stashPrefetcher = mock(StashPrefetcher.class);
+        StashDiffReport diffReport = new StashDiffReport();
+        diffReport.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/other", 1, 1);
+        when(stashPrefetcher.getPullRequestDiffReport(null)).thenReturn(diffReport);
+
+        InputFileCache inputFileCache = new InputFileCache();
+        inputFileCache.putInputFile("project:path/to/file", inputFile, "path/to/file");
+
+        ResourcePerspectives perspectives = mock(ResourcePerspectives.class);
+        CoverageProjectStore coverageProjectStore = mock(CoverageProjectStore.class);
+
+        CoverageSensor sensor = new CoverageSensor(fileSystem, perspectives, config, mock(ActiveRules.class),
+                coverageProjectStore, inputFileCache, stashPrefetcher);
+        sensor.analyse(null, context);
+
+        verify(coverageProjectStore).updateMeasurements(10, 10);
+        verify(perspectives, never()).as(Issuable.class, inputFile);
+    }
 }
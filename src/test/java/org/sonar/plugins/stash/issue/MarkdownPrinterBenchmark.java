@@ -0,0 +1,58 @@
+package org.sonar.plugins.stash.issue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
+
+/**
+ * Compares the rendering of an issue comment with the default template to the
+ * hard-coded concatenation it replaced. Run the footprint comparison with
+ * "-prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MarkdownPrinterBenchmark {
+
+    private static final String SONARQUBE_URL = "https://sonarqube.example.com";
+
+    private Issue issue;
+
+    @Setup
+    public void setUp() {
+        issue = new DefaultIssue().setKey("key").setSeverity(Severity.MAJOR)
+                .setMessage("Remove this unused private \"foo\" method.").setRuleKey(RuleKey.of("squid", "UnusedPrivateMethod"))
+                .setLine(42);
+    }
+
+    @Benchmark
+    public String concatenation() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*").append(StringUtils.upperCase(issue.severity())).append("*").append(" - ").append(issue.message())
+                .append(" [[").append(issue.ruleKey()).append("]").append("(").append(SONARQUBE_URL).append("/")
+                .append("coding_rules#rule_key=").append(issue.ruleKey()).append(")]");
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String template() {
+        return MarkdownPrinter.printIssueMarkdown(issue, SONARQUBE_URL);
+    }
+}
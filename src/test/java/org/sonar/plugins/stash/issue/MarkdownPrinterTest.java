@@ -1,11 +1,18 @@
 package org.sonar.plugins.stash.issue;
 
+import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -61,6 +68,94 @@ public class MarkdownPrinterTest {
                 MarkdownPrinter.printIssueMarkdown(report.get(0), SONAR_URL));
     }
 
+    @Test
+    public void testPrintIssuesMarkdown() {
+        ReportIssue issue1 = new ReportIssue("key1", "component", "path", RuleKey.of("RepoBlocker", "RuleBlocker"),
+                Severity.BLOCKER, "messageBlocker", 1);
+        ReportIssue issue2 = new ReportIssue("key2", "component", "path", RuleKey.of("RepoMajor", "RuleMajor"),
+                Severity.MAJOR, "messageMajor", 1);
+
+        assertEquals(MarkdownPrinter.printIssueMarkdown(issue1, SONAR_URL), MarkdownPrinter.printIssuesMarkdown(
+                Collections.singletonList(issue1), SONAR_URL, MarkdownPrinter.ISSUE_TEMPLATE, null));
+        assertEquals(
+                "- *BLOCKER* - messageBlocker [[RepoBlocker:RuleBlocker](sonarqube/URL/coding_rules#rule_key=RepoBlocker:RuleBlocker)]\n"
+                        + "- *MAJOR* - messageMajor [[RepoMajor:RuleMajor](sonarqube/URL/coding_rules#rule_key=RepoMajor:RuleMajor)]",
+                MarkdownPrinter.printIssuesMarkdown(Arrays.asList(issue1, issue2), SONAR_URL, MarkdownPrinter.ISSUE_TEMPLATE,
+                        null));
+    }
+
+    @Test
+    public void testPrintReportIssueMarkdown() {
+        ReportIssue issue = new ReportIssue("key1", "component", "path", RuleKey.of("RepoBlocker", "RuleBlocker"),
+                Severity.BLOCKER, "messageBlocker", 1);
+
+        String markdown = MarkdownPrinter.printIssueMarkdown(issue, SONAR_URL);
+        assertEquals(
+                "*BLOCKER* - messageBlocker [[RepoBlocker:RuleBlocker](sonarqube/URL/coding_rules#rule_key=RepoBlocker:RuleBlocker)]",
+                markdown);
+        assertSame(markdown, MarkdownPrinter.printIssueMarkdown(issue, SONAR_URL));
+        assertEquals(
+                "*BLOCKER* - messageBlocker [[RepoBlocker:RuleBlocker](other/coding_rules#rule_key=RepoBlocker:RuleBlocker)]",
+                MarkdownPrinter.printIssueMarkdown(issue, "other"));
+    }
+
+    @Test
+    public void testPrintReportIssueMarkdownIsShared() {
+        IssueMarkdownCache cache = new IssueMarkdownCache();
+        RuleKey ruleKey = RuleKey.of("RepoBlocker", "RuleBlocker");
+        ReportIssue issue1 = new ReportIssue("key1", "component", "path1", ruleKey, Severity.BLOCKER, "messageBlocker", 1, cache);
+        ReportIssue issue2 = new ReportIssue("key2", "component", "path2", ruleKey, Severity.BLOCKER, "messageBlocker", 2, cache);
+        ReportIssue issue3 = new ReportIssue("key3", "component", "path3", ruleKey, Severity.BLOCKER, "otherMessage", 3, cache);
+
+        String markdown = MarkdownPrinter.printIssueMarkdown(issue1, SONAR_URL);
+        assertSame(markdown, MarkdownPrinter.printIssueMarkdown(issue2, SONAR_URL));
+        assertEquals(
+                "*BLOCKER* - otherMessage [[RepoBlocker:RuleBlocker](sonarqube/URL/coding_rules#rule_key=RepoBlocker:RuleBlocker)]",
+                MarkdownPrinter.printIssueMarkdown(issue3, SONAR_URL));
+        assertEquals(2, cache.size());
+
+        // the overview reuses the markdown of the comments
+        String report = MarkdownPrinter.printReportMarkdown(pr, STASH_URL, SONAR_URL, Arrays.<Issue>asList(issue1, issue2, issue3),
+                100, 40.0, 50.0, issuePathResolver);
+        assertThat(report, containsString(markdown));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testPrintIssueMarkdownWithTemplate() {
+        MarkdownTemplate template = MarkdownPrinter.compileIssueTemplate("${severity} ${rule} at ${path}:${line}: ${message}");
+        issuePathResolver.add(report.get(0), "path/file");
+        issuePathResolver.add(new DefaultIssue().setKey("key5"), "path/other");
+        ReportIssue issue = new ReportIssue("key5", "component", "path/other", RuleKey.of("RepoBlocker", "RuleBlocker"),
+                Severity.BLOCKER, "messageBlocker", 2);
+
+        assertEquals("BLOCKER RepoBlocker:RuleBlocker at path/file:1: messageBlocker",
+                MarkdownPrinter.printIssueMarkdown(report.get(0), SONAR_URL, template, issuePathResolver));
+        // the location is not shared between the issues
+        assertEquals("BLOCKER RepoBlocker:RuleBlocker at path/other:2: messageBlocker",
+                MarkdownPrinter.printIssueMarkdown(issue, SONAR_URL, template, issuePathResolver));
+        assertEquals(0, issue.getMarkdownCache().size());
+    }
+
+    @Test
+    public void testPrintReportMarkdownWithTemplates() {
+        MarkdownTemplate issueTemplate = MarkdownPrinter.compileIssueTemplate("${message} (${ruleUrl})");
+        MarkdownTemplate coverageIssueTemplate = MarkdownPrinter.compileCoverageIssueTemplate("${path}: ${message}");
+
+        String issueReportMarkdown = MarkdownPrinter.printReportMarkdown(pr, STASH_URL, SONAR_URL, report, 100, 40.0, 50.0,
+                issuePathResolver, issueTemplate, coverageIssueTemplate);
+
+        assertThat(issueReportMarkdown,
+                containsString("| messageBlocker (sonarqube/URL/coding_rules#rule_key=RepoBlocker:RuleBlocker) |\n"));
+        assertThat(issueReportMarkdown, containsString(
+                "| path/code/coverage: Line coverage of file path/code/coverage lowered from 50.0% to 40.0%. |\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileIssueTemplateWithCoverageVariable() {
+        MarkdownPrinter.compileIssueTemplate("${diffUrl}");
+    }
+
     @Test
     public void testPrintCoverageIssueMarkdown() {
         issuePathResolver.add(coverageIssue, "path/code/coverage");
@@ -163,6 +258,23 @@ public class MarkdownPrinterTest {
         assertEquals(reportString, issueReportMarkdown);
     }
 
+    @Test
+    public void testPrintReportMarkdownWithSameRule() {
+        report.remove(coverageIssue);
+        report.add(new DefaultIssue().setKey("key5").setSeverity(Severity.MAJOR).setMessage("otherMessageMajor")
+                .setRuleKey(RuleKey.of("RepoMajor", "RuleMajor")).setLine(2));
+
+        String issueReportMarkdown = printReportMarkdown(report, 100);
+        String reportString = "## SonarQube analysis Overview\n" + "| Total New Issues | 4 |\n" + "|-----------------|------|\n"
+                + "| BLOCKER | 1 |\n" + "| CRITICAL | 1 |\n" + "| MAJOR | 2 |\n" + "| MINOR | 0 |\n" + "| INFO | 0 |\n\n\n"
+                + "| Issues list |\n" + "|------------|\n"
+                + "| *BLOCKER* - messageBlocker [[RepoBlocker:RuleBlocker](sonarqube/URL/coding_rules#rule_key=RepoBlocker:RuleBlocker)] |\n"
+                + "| *CRITICAL* - messageCritical [[RepoCritical:RuleCritical](sonarqube/URL/coding_rules#rule_key=RepoCritical:RuleCritical)] |\n"
+                + "| *MAJOR* - messageMajor [[RepoMajor:RuleMajor](sonarqube/URL/coding_rules#rule_key=RepoMajor:RuleMajor)] |\n\n\n";
+
+        assertEquals(reportString, issueReportMarkdown);
+    }
+
     @Test
     public void testPrintEmptyReportMarkdown() {
         report = new ArrayList<>();
@@ -285,5 +397,10 @@ public class MarkdownPrinterTest {
         assertThat(issueReportMarkdown.length(), lessThanOrEqualTo((int) Short.MAX_VALUE));
         assertThat(issueReportMarkdown, containsString("| *BLOCKER* - The rest issues are skipped |"));
         assertThat(issueReportMarkdown, containsString("| The rest issues are skipped |"));
+
+        // no row is cut
+        for (String line : issueReportMarkdown.split("\n")) {
+            assertThat(line, anyOf(isEmptyString(), startsWith("#"), endsWith("|")));
+        }
     }
 }
@@ -0,0 +1,50 @@
+package org.sonar.plugins.stash.issue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MarkdownTableWriterTest {
+
+    @Test
+    public void testAddRow() {
+        StringBuilder sb = new StringBuilder("header\n");
+        MarkdownTableWriter table = new MarkdownTableWriter(sb, 100);
+
+        assertTrue(table.addRow("row1", "skipped"));
+        assertTrue(table.addRow("row2", "skipped"));
+        assertFalse(table.isTruncated());
+        assertEquals("header\n| row1 |\n| row2 |\n", sb.toString());
+    }
+
+    @Test
+    public void testAddRowOverMaxLength() {
+        StringBuilder sb = new StringBuilder();
+        MarkdownTableWriter table = new MarkdownTableWriter(sb, 30);
+
+        assertTrue(table.addRow("row1", "skipped"));
+        assertFalse(table.addRow("row2 is too long", "skipped"));
+        assertFalse(table.addRow("row3", "skipped"));
+        assertTrue(table.isTruncated());
+        assertEquals("| row1 |\n| skipped |\n", sb.toString());
+    }
+
+    @Test
+    public void testAddRenderedRow() {
+        StringBuilder sb = new StringBuilder();
+        MarkdownTableWriter table = new MarkdownTableWriter(sb, 30);
+        MarkdownTemplate template = MarkdownTemplate.compile("row${name}", Arrays.asList("name"));
+
+        assertTrue(table.addRow((row, maxLength) -> template.renderTo(row, maxLength, "1"), "skipped"));
+        // rendered up to the room left, then removed
+        assertFalse(table.addRow((row, maxLength) -> template.renderTo(row, maxLength, "2 is too long"), "skipped"));
+        assertFalse(table.addRow((row, maxLength) -> {
+            throw new AssertionError("the table is closed");
+        }, "skipped"));
+        assertEquals("| row1 |\n| skipped |\n", sb.toString());
+    }
+}
@@ -0,0 +1,71 @@
+package org.sonar.plugins.stash.issue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MarkdownTemplateTest {
+
+    private static final List<String> VARIABLES = Arrays.asList("name", "count");
+
+    @Test
+    public void testRender() {
+        MarkdownTemplate template = MarkdownTemplate.compile("*${name}*: ${count} (${name})", VARIABLES);
+
+        assertEquals("*a*: 1 (a)", template.render("a", 1));
+        assertEquals("*b*: 2 (b)", template.render("b", 2));
+        assertTrue(template.uses("name"));
+        assertTrue(template.uses("count"));
+    }
+
+    @Test
+    public void testRenderWithoutVariable() {
+        MarkdownTemplate template = MarkdownTemplate.compile("text", VARIABLES);
+
+        assertEquals("text", template.render("a", 1));
+        assertFalse(template.uses("name"));
+        assertEquals("", MarkdownTemplate.compile("", VARIABLES).render("a", 1));
+    }
+
+    @Test
+    public void testRenderLongValue() {
+        MarkdownTemplate template = MarkdownTemplate.compile("${name}!", VARIABLES);
+        char[] value = new char[100000];
+        Arrays.fill(value, 'x');
+
+        assertEquals(100001, template.render(new String(value), 0).length());
+        assertEquals("a!", template.render("a", 0));
+    }
+
+    @Test
+    public void testRenderTo() {
+        MarkdownTemplate template = MarkdownTemplate.compile("*${name}*: ${count}", VARIABLES);
+        StringBuilder sb = new StringBuilder("> ");
+
+        assertTrue(template.renderTo(sb, 8, "a", 1));
+        assertEquals("> *a*: 1", sb.toString());
+
+        sb.setLength(2);
+        assertFalse(template.renderTo(sb, 7, "a", 1));
+        assertEquals("> *a*: ", sb.toString());
+
+        sb.setLength(2);
+        assertFalse(template.renderTo(sb, 7, "a long name", 1));
+        assertEquals("> *", sb.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileWithUnknownVariable() {
+        MarkdownTemplate.compile("${unknown}", VARIABLES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileWithUnclosedPlaceholder() {
+        MarkdownTemplate.compile("${name", VARIABLES);
+    }
+}
@@ -9,6 +9,7 @@ import static org.mockito.Mockito.when;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.sonar.plugins.stash.StashPlugin;
 
 public class StashCommentReportTest {
 
@@ -167,4 +168,25 @@ public class StashCommentReportTest {
         assertTrue(report.contains("message2", "path2", 2));
         assertFalse(report.contains("message2", "path2", 10));
     }
+
+    @Test
+    public void applyDiffReportWithoutDiffComments() {
+        StashDiffReport diffReport = new StashDiffReport();
+        diffReport.add(new StashDiff(StashPlugin.CONTEXT_ISSUE_TYPE, "path2", 2, 10));
+        diffReport.add(new StashDiff("ADDED", "path2", 0, 2));
+
+        StashUser stashUser = mock(StashUser.class);
+        StashComment sourceComment = new StashComment(987654, "message2", "path2", (long) 2, stashUser, 0);
+        sourceComment.setFileType("FROM");
+        StashComment destinationComment = new StashComment(987655, "message3", "path2", (long) 2, stashUser, 0);
+        destinationComment.setFileType("TO");
+
+        StashCommentReport report = new StashCommentReport();
+        report.add(sourceComment);
+        report.add(destinationComment);
+
+        report.applyDiffReport(diffReport);
+        assertTrue(report.contains("message2", "path2", 10));
+        assertTrue(report.contains("message3", "path2", 2));
+    }
 }
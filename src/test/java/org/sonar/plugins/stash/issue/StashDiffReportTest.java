@@ -3,11 +3,18 @@ package org.sonar.plugins.stash.issue;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -146,6 +153,173 @@ public class StashDiffReportTest {
         assertEquals(comments.size(), 0);
     }
 
+    @Test
+    public void testLargeHunks() {
+        StashDiffReport report = new StashDiffReport();
+        for (int line = 1; line <= 100000; line++) {
+            report.add(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", line, line + 10);
+        }
+        for (int line = 100011; line <= 200010; line++) {
+            report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 100001, line);
+        }
+
+        assertEquals(report.getDiffs().size(), 200000);
+        assertEquals(report.getType("path/to/file", 11), StashPlugin.CONTEXT_ISSUE_TYPE);
+        assertEquals(report.getLine("path/to/file", 50010), 50000);
+        assertEquals(report.getType("path/to/file", 150000), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(report.getLine("path/to/file", 150000), 150000);
+        assertEquals(report.getType("path/to/file", 10), null);
+        assertEquals(report.getType("path/to/file", 200011), null);
+        assertEquals(report.getContextDiffBySource("path/to/file", 42).getDestination(), 52);
+
+        StashDiff diff = report.getDiffs().get(150000);
+        assertEquals(diff.getType(), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(diff.getSource(), 100001);
+        assertEquals(diff.getDestination(), 150011);
+    }
+
+    @Test
+    public void testLinesAddedOutOfOrder() {
+        StashComment comment = mock(StashComment.class);
+        when(comment.getId()).thenReturn((long) 4242);
+
+        StashDiff commentedDiff = new StashDiff(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 5, 5);
+        commentedDiff.addComment(comment);
+
+        StashDiffReport report = new StashDiffReport();
+        report.add(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 30, 30);
+        report.add(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 31, 31);
+        report.add(commentedDiff);
+        report.add(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 0, 0);
+
+        assertEquals(report.getLine("path/to/file", 31), 31);
+        assertEquals(report.getType("path/to/file", 5), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(report.getType("path/to/file", 6), null);
+        assertEquals(report.getDiffByComment(4242), commentedDiff);
+        assertThat(report.getDiff("path/to/file"),
+                contains(new StashDiff(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 30, 30),
+                        new StashDiff(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 31, 31), commentedDiff,
+                        new StashDiff(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file", 0, 0)));
+    }
+
+    @Test
+    public void testAddReportKeepsComments() {
+        StashDiffReport report = new StashDiffReport();
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/diff1", 1, 19);
+        report.add(report1);
+
+        assertEquals(report.getDiffs().size(), 4);
+        assertEquals(report.getDiffByComment(12345), diff1);
+        assertEquals(report.getDiffByComment(54321), diff2);
+        assertEquals(report.getComments().size(), 2);
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        StashDiffReport report = new StashDiffReport();
+        report.setMemoryBudget(1024);
+        for (int file = 0; file < 10; file++) {
+            for (int line = 1; line <= 100; line++) {
+                // a range per line
+                report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file" + file, line, 2 * line);
+            }
+        }
+        report.add(diff1);
+
+        assertTrue(report.isSpilled());
+        assertTrue(report.getHeapBytes() < 10 * 100 * 17);
+        assertEquals(report.getDiffs().size(), 1001);
+        assertEquals(report.getType("path/to/file3", 100), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(report.getType("path/to/file3", 101), null);
+        assertEquals(report.getLine("path/to/file3", 200), 200);
+        assertEquals(report.getDiffByComment(12345), diff1);
+
+        // lines added to a file moved to disk
+        report.add(StashPlugin.CONTEXT_ISSUE_TYPE, "path/to/file3", 101, 201);
+        assertEquals(report.getLine("path/to/file3", 201), 101);
+        assertEquals(report.getType("path/to/file3", 198), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(report.getDiff("path/to/file3").size(), 101);
+    }
+
+    @Test
+    public void testNoMemoryBudget() {
+        StashDiffReport report = new StashDiffReport();
+        for (int line = 1; line <= 1000; line++) {
+            report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file" + (line % 10), line, 2 * line);
+        }
+
+        assertFalse(report.isSpilled());
+        assertTrue(report.getHeapBytes() >= 1000 * 17);
+    }
+
+    @Test
+    public void testGetView() {
+        StashDiffReport view = report1.getView(new HashSet<>(Arrays.asList("path/to/diff1", "path/to/unknown")));
+
+        assertTrue(view.hasPath("path/to/diff1"));
+        assertFalse(view.hasPath("path/to/diff2"));
+        assertEquals(view.getDiffs(), Collections.singletonList(diff1));
+        assertEquals(view.getType("path/to/diff1", 20), StashPlugin.CONTEXT_ISSUE_TYPE);
+        assertEquals(view.getComments().size(), 1);
+        assertEquals(report1.getDiffs().size(), 3);
+    }
+
+    @Test
+    public void testSpillFileDeleted() {
+        Set<String> spillFiles = getSpillFiles();
+
+        StashDiffReport report = new StashDiffReport();
+        report.setMemoryBudget(1);
+        for (int file = 0; file < 3; file++) {
+            report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file" + file, 1, 1);
+        }
+
+        assertTrue(report.isSpilled());
+        assertEquals(report.getType("path/to/file0", 1), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(spillFiles, getSpillFiles());
+    }
+
+    @Test
+    public void testMemoryBudgetCountsComments() {
+        StashComment comment = new StashComment(1, "message", "path/to/file", 1L, mock(StashUser.class), 0);
+        comment.addTask(new StashTask(1L, "task", "OPEN", true));
+
+        StashDiffReport report = new StashDiffReport();
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 1, 1);
+        long heapBytes = report.getHeapBytes();
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 2, 2, Collections.singletonList(comment));
+        assertTrue(report.getHeapBytes() > heapBytes + 2 * "message".length() + 2 * "task".length());
+
+        // the comments move the lines of the previous files to disk
+        report.setMemoryBudget(report.getHeapBytes() + 1);
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/other", 2, 2, Collections.singletonList(comment));
+        assertFalse(report.isSpilled());
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/last", 1, 1);
+        assertTrue(report.isSpilled());
+    }
+
+    private static Set<String> getSpillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir"))
+                .list((dir, name) -> name.startsWith("stash-diff") && name.endsWith(".bin"));
+        return names == null ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(names));
+    }
+
+    @Test
+    public void testAddLineWithComments() {
+        StashComment comment = mock(StashComment.class);
+        when(comment.getId()).thenReturn((long) 4242);
+
+        StashDiffReport report = new StashDiffReport();
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 1, 1, Collections.<StashComment>emptyList());
+        report.add(StashPlugin.ADDED_ISSUE_TYPE, "path/to/file", 2, 2, Collections.singletonList(comment));
+
+        assertEquals(report.getType("path/to/file", 2), StashPlugin.ADDED_ISSUE_TYPE);
+        assertEquals(report.getDiffByComment(1234), null);
+        assertThat(report.getComments(), contains(comment));
+        assertThat(report.getDiffByComment(4242).getComments(), contains(comment));
+        assertTrue(report.getDiffs().get(0).getComments().isEmpty());
+    }
+
     @Test
     public void testGetCommentsWithDuplicatedComments() {
         StashComment comment1 = new StashComment(12345, "message", "path", (long) 1, mock(StashUser.class), 1);
@@ -1,14 +1,20 @@
 package org.sonar.plugins.stash.issue.collector;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.plugins.stash.InputFileCache;
+import org.sonar.plugins.stash.InputFileCache.CachedFile;
 
 public class InputFileCacheTest {
 
@@ -19,16 +25,48 @@ public class InputFileCacheTest {
     public void setUp() {
         inputFile1 = mock(InputFile.class);
         when(inputFile1.relativePath()).thenReturn("path1");
+        when(inputFile1.status()).thenReturn(InputFile.Status.ADDED);
+        when(inputFile1.language()).thenReturn("java");
     }
 
     @Test
     public void testGetPutInputFile() {
-        String componentKey1 = "componentKey1";
+        InputFileCache cache = new InputFileCache();
+        cache.putInputFile("componentKey1", inputFile1, "module/path1");
+
+        CachedFile file = cache.getFile("componentKey1");
+        assertEquals("module/path1", file.getPath());
+        assertEquals(InputFile.Status.ADDED, file.getStatus());
+        assertEquals("java", file.getLanguage());
+        assertNull(cache.getFile("componentKey2"));
+    }
 
+    @Test
+    public void testGetPath() {
         InputFileCache cache = new InputFileCache();
-        cache.putInputFile(componentKey1, inputFile1);
+        cache.putInputFile("componentKey1", inputFile1, "module/path1");
+
+        assertEquals("module/path1", cache.getPath("componentKey1"));
+        assertEquals(null, cache.getPath("componentKey2"));
+    }
+
+    @Test
+    public void testPutInputFilesConcurrently() throws Exception {
+        InputFileCache cache = new InputFileCache();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int module = 0; module < 4; module++) {
+            String moduleKey = "module" + module;
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    cache.putInputFile(moduleKey + ":file" + i, inputFile1, moduleKey + "/file" + i);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
 
-        assertEquals(inputFile1, cache.getInputFile("componentKey1"));
-        assertEquals(null, cache.getInputFile("componentKey2"));
+        assertEquals(4000, cache.size());
+        assertEquals("module3/file999", cache.getPath("module3:file999"));
     }
 }
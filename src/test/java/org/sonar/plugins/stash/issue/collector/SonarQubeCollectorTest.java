@@ -1,6 +1,8 @@
 package org.sonar.plugins.stash.issue.collector;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.mock;
@@ -27,7 +29,9 @@ import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.Measure;
 import org.sonar.api.resources.Resource;
 import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
 import org.sonar.plugins.stash.fixtures.DummyIssuePathResolver;
+import org.sonar.plugins.stash.issue.ReportIssue;
 import org.sonar.plugins.stash.issue.StashDiffReport;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -176,6 +180,41 @@ public class SonarQubeCollectorTest {
 
     }
 
+    @Test
+    public void testExtractIssueReportProjectsIssues() {
+        when(issue1.severity()).thenReturn(new String(Severity.MAJOR));
+        when(issue2.severity()).thenReturn(new String(Severity.MAJOR));
+        when(issue1.ruleKey()).thenReturn(RuleKey.of("repo", "rule"));
+        when(issue2.ruleKey()).thenReturn(RuleKey.of("repo", "rule"));
+        issuePathResolver.add(issue2, new String("project/path1"));
+
+        ArrayList<Issue> issues = new ArrayList<Issue>();
+        issues.add(issue1);
+        issues.add(issue2);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        when(stashDiffReport.hasPath("project/path1")).thenReturn(true);
+
+        List<Issue> report = SonarQubeCollector.extractIssueReport(projectIssues, stashDiffReport, issuePathResolver);
+        assertEquals(2, report.size());
+
+        ReportIssue sqIssue1 = (ReportIssue) report.get(0);
+        ReportIssue sqIssue2 = (ReportIssue) report.get(1);
+        assertNotSame(issue1, sqIssue1);
+        assertEquals("key1", sqIssue1.key());
+        assertEquals("component1", sqIssue1.componentKey());
+        assertEquals("message1", sqIssue1.message());
+        assertEquals((Integer) 1, sqIssue1.line());
+        assertEquals("project/path1", sqIssue1.getPath());
+        assertEquals("key2", sqIssue2.key());
+
+        // shared between the issues of the report
+        assertSame(Severity.MAJOR, sqIssue1.severity());
+        assertSame(Severity.MAJOR, sqIssue2.severity());
+        assertSame(sqIssue1.ruleKey(), sqIssue2.ruleKey());
+        assertSame(sqIssue1.getPath(), sqIssue2.getPath());
+    }
+
     @Test
     public void testExtractIssueReportNotInDiff() {
         ArrayList<Issue> issues = new ArrayList<Issue>();
@@ -226,6 +265,62 @@ public class SonarQubeCollectorTest {
         assertEquals(1, countIssuesBySeverity(report, "severity2"));
     }
 
+    @Test
+    public void testExtractIssuesOnDiffLines() {
+        ArrayList<Issue> issues = new ArrayList<Issue>();
+        issues.add(issue1);
+        issues.add(issue2);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        when(stashDiffReport.hasPath("project/path1")).thenReturn(true);
+        when(stashDiffReport.hasPath("project/path2")).thenReturn(true);
+        when(stashDiffReport.getType("project/path1", 1)).thenReturn("ADDED");
+
+        // the report keeps all the issues of the files of the diff
+        List<Issue> report = SonarQubeCollector.extractIssueReport(projectIssues, stashDiffReport, issuePathResolver);
+        assertEquals(2, report.size());
+
+        List<Issue> issuesOnDiffLines = SonarQubeCollector.extractIssuesOnDiffLines(report, stashDiffReport,
+                issuePathResolver);
+        assertEquals(1, issuesOnDiffLines.size());
+        assertEquals("message1", issuesOnDiffLines.get(0).message());
+        assertEquals(2, report.size());
+    }
+
+    @Test
+    public void testExtractIssuesOnDiffLinesWithNoLine() {
+        when(issue1.line()).thenReturn(null);
+
+        ArrayList<Issue> issues = new ArrayList<Issue>();
+        issues.add(issue1);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        when(stashDiffReport.hasPath("project/path1")).thenReturn(true);
+        when(stashDiffReport.getType("project/path1", 0)).thenReturn("CONTEXT");
+
+        List<Issue> report = SonarQubeCollector.extractIssueReport(projectIssues, stashDiffReport, issuePathResolver);
+        assertEquals(1, SonarQubeCollector.extractIssuesOnDiffLines(report, stashDiffReport, issuePathResolver).size());
+    }
+
+    @Test
+    public void testExtractIssueReportFeedsIssuesOnDiffLines() {
+        ArrayList<Issue> issues = new ArrayList<Issue>();
+        issues.add(issue1);
+        issues.add(issue2);
+        when(projectIssues.issues()).thenReturn(issues);
+
+        when(stashDiffReport.hasPath("project/path1")).thenReturn(true);
+        when(stashDiffReport.hasPath("project/path2")).thenReturn(true);
+        when(stashDiffReport.getType("project/path1", 1)).thenReturn("ADDED");
+
+        List<Issue> issuesOnDiffLines = new ArrayList<>();
+        List<Issue> report = SonarQubeCollector.extractIssueReport(projectIssues, stashDiffReport, issuePathResolver,
+                issuesOnDiffLines::add);
+        assertEquals(2, report.size());
+        assertEquals(1, issuesOnDiffLines.size());
+        assertSame(report.get(0), issuesOnDiffLines.get(0));
+    }
+
     @Test
     public void testExtractIssueReportWithOneIssueWithoutInputFile() {
         issuePathResolver.clear();
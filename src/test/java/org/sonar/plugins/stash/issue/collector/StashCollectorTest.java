@@ -2,8 +2,16 @@ package org.sonar.plugins.stash.issue.collector;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.json.simple.JsonObject;
 import org.json.simple.Jsoner;
 import org.junit.Test;
@@ -68,6 +76,22 @@ public class StashCollectorTest {
         assertEquals(comment2.getLine(), 2);
     }
 
+    @Test
+    public void testExtractCommentReportSharesUsersAndPaths() throws Exception {
+        String commentString = "{\"values\": ["
+                + "{\"id\":1234, \"text\":\"message1\", \"anchor\": {\"path\":\"path\", \"line\":1},"
+                + "\"author\": {\"id\":1, \"name\":\"SonarQube\", \"slug\":\"sonarqube\", \"email\":\"sq@email.com\"}, \"version\":1}, "
+                + "{\"id\":5678, \"text\":\"message2\", \"anchor\": {\"path\":\"path\", \"line\":2},"
+                + "\"author\": {\"id\":1, \"name\":\"SonarQube\", \"slug\":\"sonarqube\", \"email\":\"sq@email.com\"}, \"version\":2}]}";
+
+        StashCommentReport commentReport = StashCollector.extractComments(parse(commentString));
+
+        StashComment comment1 = commentReport.getComments().get(0);
+        StashComment comment2 = commentReport.getComments().get(1);
+        assertSame(comment1.getAuthor(), comment2.getAuthor());
+        assertSame(comment1.getPath(), comment2.getPath());
+    }
+
     @Test
     public void testExtractEmptyCommentReport() throws Exception {
         String commentString = "{\"values\": []}";
@@ -89,6 +113,18 @@ public class StashCollectorTest {
         assertEquals(comment.getVersion(), 0);
         assertEquals(comment.getAuthor().getId(), STASH_USER_ID);
         assertEquals(comment.getLine(), 5);
+        assertFalse(comment.isAnchoredToSource());
+    }
+
+    @Test
+    public void testExtractCommentOnSourceLine() throws Exception {
+        String commentString = "{\"id\":1234, \"text\":\"message\", \"anchor\": {\"path\":\"path\", \"line\":5, \"fileType\":\"FROM\"},"
+                + "\"author\": {\"id\":1, \"name\":\"SonarQube\", \"slug\":\"sonarqube\", \"email\":\"sq@email.com\"}, \"version\":0}";
+
+        StashComment comment = StashCollector.extractComment(parse(commentString));
+
+        assertEquals(comment.getLine(), 5);
+        assertTrue(comment.isAnchoredToSource());
     }
 
     @Test
@@ -388,6 +424,62 @@ public class StashCollectorTest {
         assertTrue(report.getDiffs().isEmpty());
     }
 
+    @Test
+    public void testExtractDiffsWithMemoryBudget() throws Exception {
+        StashDiffReport report = StashCollector.extractDiffs(parse(DiffReportSample.multipleFileReport), null, 1);
+        assertTrue(report.isSpilled());
+        assertEquals(report.getDiffs().size(), 2);
+        assertEquals(report.getLine("stash-plugin/Test.java", 20), 10);
+
+        assertFalse(StashCollector.extractDiffs(parse(DiffReportSample.multipleFileReport), null, 0).isSpilled());
+    }
+
+    @Test
+    public void testExtractDiffsFromReader() throws Exception {
+        for (String sample : Arrays.asList(DiffReportSample.baseReport, DiffReportSample.baseReportWithFileComments,
+                DiffReportSample.baseReportWithEmptyFileComments, DiffReportSample.baseReportWithNoComments,
+                DiffReportSample.emptyReport, DiffReportSample.multipleFileReport, DiffReportSample.deletedFileReport)) {
+            StashDiffReport expected = StashCollector.extractDiffs(parse(sample));
+            StashDiffReport report = StashCollector.extractDiffs(new StringReader(sample), null, 0);
+
+            assertEquals(expected.getDiffs(), report.getDiffs());
+            assertEquals(expected.getComments(), report.getComments());
+            for (StashComment comment : expected.getComments()) {
+                StashComment extracted = report.getComments().get(expected.getComments().indexOf(comment));
+                assertEquals(comment.getMessage(), extracted.getMessage());
+                assertEquals(comment.getTasks().size(), extracted.getTasks().size());
+            }
+        }
+    }
+
+    @Test
+    public void testExtractDiffsFromReaderSkipsOtherEntries() throws Exception {
+        String jsonBody = "{\"fromHash\": \"abc\", \"properties\": {\"lines\": [[1, 2], {\"diffs\": []}]},"
+                + " \"diffs\": [42, {\"destination\": {\"toString\": \"path/to/file\"},"
+                + " \"hunks\": [{\"segments\": [{\"type\": \"ADDED\", \"lines\": [{\"source\": 1, \"destination\": 2}]}]}]}],"
+                + " \"truncated\": false, \"contextLines\": [3]}";
+
+        StashDiffReport report = StashCollector.extractDiffs(new StringReader(jsonBody), null, 0);
+        assertEquals(report.getDiffs(), Collections.singletonList(new StashDiff("ADDED", "path/to/file", 1, 2)));
+
+        assertNull(StashCollector.extractDiffs(new StringReader("{\"properties\": {\"diffs\": []}}"), null, 0));
+        assertNull(StashCollector.extractDiffs(new StringReader("{\"diffs\": null}"), null, 0));
+    }
+
+    @Test(expected = StashReportExtractionException.class)
+    public void testExtractDiffsFromInvalidReader() throws Exception {
+        StashCollector.extractDiffs(new StringReader("{\"diffs\": [{\"destination\":"), null, 0);
+    }
+
+    @Test
+    public void testExtractDiffsFromReaderWithMemoryBudget() throws Exception {
+        StashDiffReport report = StashCollector.extractDiffs(new StringReader(DiffReportSample.multipleFileReport),
+                null, 1);
+        assertTrue(report.isSpilled());
+        assertEquals(report.getDiffs().size(), 2);
+        assertEquals(report.getLine("stash-plugin/Test.java", 20), 10);
+    }
+
     @Test
     public void testExtractDiffsWithMultipleFile() throws Exception {
         StashDiffReport report = StashCollector.extractDiffs(parse(DiffReportSample.multipleFileReport));
@@ -410,6 +502,46 @@ public class StashCollectorTest {
         assertFalse(diff2.containsComment(54321));
     }
 
+    @Test
+    public void testExtractDiffsWithPathFilter() throws Exception {
+        StashDiffReport report = StashCollector.extractDiffs(parse(DiffReportSample.multipleFileReport),
+                Collections.singleton("stash-plugin/Test1.java"));
+        assertEquals(report.getDiffs().size(), 1);
+
+        StashDiff diff = report.getDiffs().get(0);
+        assertEquals(diff.getPath(), "stash-plugin/Test1.java");
+        assertEquals(diff.getType(), "ADDED");
+        assertFalse(report.hasPath("stash-plugin/Test.java"));
+        assertTrue(report.getComments().isEmpty());
+    }
+
+    @Test
+    public void testExtractDiffsSharesUsers() throws Exception {
+        int lineCount = 5000;
+        StringBuilder lines = new StringBuilder();
+        StringBuilder comments = new StringBuilder();
+        for (int line = 1; line <= lineCount; line++) {
+            String separator = line == 1 ? "" : ",";
+            lines.append(separator).append("{\"source\":").append(line).append(", \"destination\":").append(line)
+                    .append(", \"commentIds\":[").append(line).append("]}");
+            comments.append(separator).append("{\"id\":").append(line).append(", \"text\":\"comment\", \"version\":0,")
+                    .append(" \"author\": {\"id\":").append(line % 2).append(", \"name\":\"SonarQube\",")
+                    .append(" \"slug\":\"sonarqube\", \"email\":\"sq@email.com\"}}");
+        }
+        String jsonBody = "{\"diffs\": [{\"destination\": {\"toString\": \"path/to/file\"},"
+                + " \"hunks\": [{\"segments\": [{\"type\": \"ADDED\", \"lines\": [" + lines + "]}]}],"
+                + " \"lineComments\": [" + comments + "]}]}";
+
+        StashDiffReport report = StashCollector.extractDiffs(parse(jsonBody));
+
+        Map<StashUser, Boolean> authors = new IdentityHashMap<>();
+        for (StashComment comment : report.getComments()) {
+            authors.put(comment.getAuthor(), true);
+        }
+        assertEquals(lineCount, report.getComments().size());
+        assertEquals(2, authors.size());
+    }
+
     @Test
     public void testExtractDiffsWithDeletedFile() throws Exception {
         StashDiffReport report = StashCollector.extractDiffs(parse(DiffReportSample.deletedFileReport));